@@ -0,0 +1,510 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * Polls a group of TICs that share a USB bus while keeping the total
+ * number of control transfers inside a budget.
+ *
+ * Every poll is one TicStatus read (one transfer, more if it has to be
+ * recovered).  The budget left
+ * after the traffic from commands and other reads is shared between
+ * the devices by weight: a device that is moving gets the motion
+ * weight and an idle one gets a weight of 1.  Rates are kept between
+ * a minimum and maximum and rebalanced periodically from the latest
+ * status of each device.
+ *
+ * The transfers actually used are measured from the transfer counts
+ * of the interfaces, so traffic from other code is included.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicBandwidthBudget implements AutoCloseable {
+
+	/** Default share of the budget held back for commands */
+	static public final double DEFAULT_COMMAND_RESERVE = 0.2;
+
+	/**
+	 * Transfer cost of sending a command with TicCmd.Send.  Every
+	 * command, including the reads, is one control transfer.
+	 */
+	static public final int COMMAND_COST = 1;
+
+	/** Default weight of a moving device relative to an idle one */
+	static public final double DEFAULT_MOTION_WEIGHT = 8.0;
+
+	/** Time between rebalances of the polling rates */
+	static private final long REBALANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	/** Transfers per second the bus can spend on these devices */
+	private volatile double budget;
+
+	/** Share of the budget held back for commands */
+	private volatile double commandReserve = DEFAULT_COMMAND_RESERVE;
+
+	/** Weight of a moving device */
+	private volatile double motionWeight = DEFAULT_MOTION_WEIGHT;
+
+	/** Lowest polling rate in Hz */
+	private volatile double minRate = 1.0;
+
+	/** Highest polling rate in Hz */
+	private volatile double maxRate = 200.0;
+
+	/** Runs the pollers and the rebalancer */
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/** Pollers by device */
+	private final Map<TicInterface, Poller> pollers = new ConcurrentHashMap<>();
+
+	/** Listeners for every status read */
+	private final List<Consumer<TicStatus>> listeners = new CopyOnWriteArrayList<>();
+
+	/** Rebalancing task (null when stopped) */
+	private ScheduledFuture<?> rebalancer = null;
+
+	/** Time of the last rebalance */
+	private long lastRebalance;
+
+	/** Measured transfers per second of all devices */
+	private volatile double usedRate = 0;
+
+	/** Measured transfers per second of everything but polling */
+	private volatile double commandRate = 0;
+
+	/**
+	 * Constructor
+	 * @param transfersPerSecond - Control transfers per second shared by the devices
+	 */
+	public TicBandwidthBudget(double transfersPerSecond)
+	{
+		setBudget(transfersPerSecond);
+		this.scheduler = new ScheduledThreadPoolExecutor(1, TicThreads.daemon("tic-budget"));
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Gets the transfer cost of reading a variable with TicVar.get right
+	 * now.  A variable served from the interface's copy of what was last
+	 * commanded (see TicInterface.setShadowing()) costs nothing.
+	 * @param tic - The tic interface
+	 * @param var - The variable
+	 * @return the number of control transfers
+	 */
+	static public int cost(TicInterface tic, TicVar var)
+	{
+		return tic.shadow().serves(var) ? 0 : COMMAND_COST;
+	}
+
+	/**
+	 * Gets the worst case transfer cost of writing a setting with TicSet.set.
+	 * Each byte is read back and only written if it changed.
+	 * @param set - The setting
+	 * @return the number of control transfers
+	 */
+	static public int cost(TicSet set)
+	{
+		return set.cost();
+	}
+
+	/**
+	 * Sets the total budget
+	 * @param transfersPerSecond - Control transfers per second shared by the devices
+	 */
+	public void setBudget(double transfersPerSecond)
+	{
+		if (transfersPerSecond <= 0)
+		{
+			throw new IllegalArgumentException("budget must be positive");
+		}
+		this.budget = transfersPerSecond;
+	}
+
+	/**
+	 * Gets the total budget
+	 * @return control transfers per second shared by the devices
+	 */
+	public double getBudget()
+	{
+		return this.budget;
+	}
+
+	/**
+	 * Sets the share of the budget held back for commands.  If the
+	 * measured command traffic is higher, polling gets what is left.
+	 * @param fraction - Share of the budget (0 to 1)
+	 */
+	public void setCommandReserve(double fraction)
+	{
+		if (fraction < 0 || fraction >= 1)
+		{
+			throw new IllegalArgumentException("reserve must be in [0, 1)");
+		}
+		this.commandReserve = fraction;
+	}
+
+	/**
+	 * Sets how much more polling a moving device gets than an idle one
+	 * @param weight - Weight of a moving device (idle is 1)
+	 */
+	public void setMotionWeight(double weight)
+	{
+		if (weight < 1)
+		{
+			throw new IllegalArgumentException("weight must be at least 1");
+		}
+		this.motionWeight = weight;
+	}
+
+	/**
+	 * Sets the limits of the polling rate of each device.  The minimum
+	 * is kept even if it means going over budget.
+	 * @param minHz - Lowest polling rate
+	 * @param maxHz - Highest polling rate
+	 */
+	public void setRateLimits(double minHz, double maxHz)
+	{
+		if (minHz <= 0 || maxHz < minHz)
+		{
+			throw new IllegalArgumentException("bad rate limits");
+		}
+		this.minRate = minHz;
+		this.maxRate = maxHz;
+	}
+
+	/**
+	 * Adds a TIC to poll
+	 * @param tic - The tic interface
+	 */
+	public synchronized void addDevice(TicInterface tic)
+	{
+		if (this.pollers.containsKey(tic))
+		{
+			return;
+		}
+
+		Poller poller = new Poller(tic);
+		this.pollers.put(tic, poller);
+		this.scheduler.setCorePoolSize(this.pollers.size() + 1);
+		rebalance();
+		if (this.rebalancer != null)
+		{
+			poller.schedule(0);
+		}
+	}
+
+	/**
+	 * Stops polling a TIC
+	 * @param tic - The tic interface
+	 */
+	public synchronized void removeDevice(TicInterface tic)
+	{
+		Poller poller = this.pollers.remove(tic);
+		if (poller != null)
+		{
+			poller.stop();
+			rebalance();
+		}
+	}
+
+	/**
+	 * Adds a listener that gets every status read.  Listeners are
+	 * called on the polling threads and should return quickly.
+	 * @param listener - The listener
+	 */
+	public void addListener(Consumer<TicStatus> listener)
+	{
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 * @param listener - The listener
+	 */
+	public void removeListener(Consumer<TicStatus> listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Starts polling
+	 */
+	public synchronized void start()
+	{
+		if (this.rebalancer != null)
+		{
+			return;
+		}
+
+		this.lastRebalance = System.nanoTime();
+		for (Poller poller : this.pollers.values())
+		{
+			poller.lastCount = poller.tic.getTransferCount();
+			poller.pollTransfers.reset();
+			poller.schedule(0);
+		}
+		this.rebalancer = this.scheduler.scheduleAtFixedRate(
+				this::rebalance, REBALANCE_NANOS, REBALANCE_NANOS, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops polling.  It can be started again.
+	 */
+	public synchronized void stop()
+	{
+		if (this.rebalancer != null)
+		{
+			this.rebalancer.cancel(false);
+			this.rebalancer = null;
+		}
+		for (Poller poller : this.pollers.values())
+		{
+			poller.stop();
+		}
+	}
+
+	/**
+	 * Stops polling and releases the threads
+	 */
+	@Override
+	public void close()
+	{
+		stop();
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Gets the polling rate assigned to a TIC
+	 * @param tic - The tic interface
+	 * @return the rate in Hz (0 if the device isn't in the budget)
+	 */
+	public double getPollRate(TicInterface tic)
+	{
+		Poller poller = this.pollers.get(tic);
+		return poller == null ? 0 : poller.rate;
+	}
+
+	/**
+	 * Gets the latest status read from a TIC
+	 * @param tic - The tic interface
+	 * @return the status (null if none has been read)
+	 */
+	public TicStatus getLatest(TicInterface tic)
+	{
+		Poller poller = this.pollers.get(tic);
+		return poller == null ? null : poller.latest;
+	}
+
+	/**
+	 * Gets the measured transfers per second of all devices over the
+	 * last rebalance period, including commands and other reads.
+	 * @return transfers per second
+	 */
+	public double getUsedTransfersPerSecond()
+	{
+		return this.usedRate;
+	}
+
+	/**
+	 * Gets the measured transfers per second that weren't polls
+	 * @return transfers per second
+	 */
+	public double getCommandTransfersPerSecond()
+	{
+		return this.commandRate;
+	}
+
+	/**
+	 * Gets the share of the budget actually used
+	 * @return used / budget
+	 */
+	public double getUsedFraction()
+	{
+		return this.usedRate / this.budget;
+	}
+
+	/**
+	 * Measures the traffic since the last call and shares the polling
+	 * budget between the devices.
+	 */
+	private synchronized void rebalance()
+	{
+		long now = System.nanoTime();
+		double seconds = (now - this.lastRebalance) / 1e9;
+		this.lastRebalance = now;
+
+		long used = 0;
+		long polled = 0;
+		for (Poller poller : this.pollers.values())
+		{
+			long count = poller.tic.getTransferCount();
+			used += count - poller.lastCount;
+			poller.lastCount = count;
+			polled += poller.pollTransfers.sumThenReset();
+		}
+
+		if (seconds > 0 && this.rebalancer != null)
+		{
+			this.usedRate = used / seconds;
+			this.commandRate = Math.max(0, used - polled) / seconds;
+		}
+
+		// Water fill: share by weight, and hand the excess of devices
+		// that hit the maximum rate to the others.
+		double available = this.budget - Math.max(this.commandRate, this.budget * this.commandReserve);
+		double weights = 0;
+		for (Poller poller : this.pollers.values())
+		{
+			poller.weight = poller.isMoving() ? this.motionWeight : 1.0;
+			poller.capped = false;
+			weights += poller.weight;
+		}
+
+		boolean changed = true;
+		while (changed && weights > 0)
+		{
+			changed = false;
+			for (Poller poller : this.pollers.values())
+			{
+				if (!poller.capped && available * poller.weight / weights > this.maxRate)
+				{
+					poller.capped = true;
+					available -= this.maxRate;
+					weights -= poller.weight;
+					changed = true;
+				}
+			}
+		}
+
+		for (Poller poller : this.pollers.values())
+		{
+			double rate = poller.capped ? this.maxRate : available * poller.weight / weights;
+			poller.rate = Math.max(this.minRate, Math.min(this.maxRate, rate));
+		}
+	}
+
+	/**
+	 * Polls one device at its assigned rate
+	 */
+	private class Poller implements Runnable {
+		private final TicInterface tic;
+
+		/** Assigned polling rate in Hz */
+		private volatile double rate;
+
+		/** Latest status read */
+		private volatile TicStatus latest = null;
+
+		/** Pending poll (null when stopped) */
+		private ScheduledFuture<?> next = null;
+
+		/** Rebalancing state, guarded by the budget */
+		private double weight;
+		private boolean capped;
+		private long lastCount;
+
+		/** Transfers the polls used since the last rebalance, retries included */
+		private final LongAdder pollTransfers = new LongAdder();
+
+		/**
+		 * Constructor
+		 * @param tic - The tic interface to poll
+		 */
+		private Poller(TicInterface tic)
+		{
+			this.tic = tic;
+			this.lastCount = tic.getTransferCount();
+		}
+
+		/**
+		 * Checks the latest status for motion.  A device that hasn't
+		 * been read yet counts as moving so its state is found quickly.
+		 * @return true if moving
+		 */
+		private boolean isMoving()
+		{
+			TicStatus status = this.latest;
+			return status == null || status.isMoving();
+		}
+
+		/**
+		 * Schedules the next poll
+		 * @param delayNanos - Time until the poll
+		 */
+		private synchronized void schedule(long delayNanos)
+		{
+			if (!scheduler.isShutdown())
+			{
+				this.next = scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		/**
+		 * Cancels the pending poll
+		 */
+		private synchronized void stop()
+		{
+			if (this.next != null)
+			{
+				this.next.cancel(false);
+				this.next = null;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			long start = System.nanoTime();
+
+			synchronized (this)
+			{
+				if (this.next == null)
+				{
+					return; // Stopped
+				}
+			}
+
+			long before = this.tic.getTransferCount();
+			try
+			{
+				TicStatus status = TicStatus.read(this.tic);
+				this.latest = status;
+				for (Consumer<TicStatus> listener : listeners)
+				{
+					listener.accept(status);
+				}
+			}
+			catch (UsbDisconnectedException | UsbException e)
+			{
+				// Missing TIC.  Keep polling at the assigned rate to find it back.
+			}
+			finally
+			{
+				// What the read really cost, from nothing (TIC missing) to
+				// every retry of a recovery
+				this.pollTransfers.add(this.tic.getTransferCount() - before);
+			}
+
+			long period = (long) (1e9 / this.rate);
+			synchronized (this)
+			{
+				if (this.next != null)
+				{
+					schedule(Math.max(0, start + period - System.nanoTime()));
+				}
+			}
+		}
+	}
+}
@@ -24,7 +24,8 @@ public enum TicCmd {
 	EXIT_SAFE_START		  ((byte)0x83,CmdT.QUICK),
 	ENTER_SAFE_START      ((byte)0x8F,CmdT.QUICK),
 	RESET				  ((byte)0xB0,CmdT.QUICK),
-	CLEAR_DRIVER_ERROR    ((byte)0xE6,CmdT.BIT_32),
+	CLEAR_DRIVER_ERROR    ((byte)0x8A,CmdT.QUICK),
+	SET_MAX_SPEED		  ((byte)0xE6,CmdT.BIT_32),
 	SET_STARTING_SPEED    ((byte)0xE5,CmdT.BIT_32),
 	SET_MAX_ACCEL		  ((byte)0xEA,CmdT.BIT_32),
 	SET_MAX_DECELERATION  ((byte)0xE9,CmdT.BIT_32),
@@ -61,6 +62,107 @@ public enum TicCmd {
 		this.type = type;
 	}
 	
+	/**
+	 * Gets the USB request code of the command
+	 * @return the request code
+	 */
+	byte code()
+	{
+		return this.code;
+	}
+	
+	/**
+	 * Checks if the command is a plain write (QUICK, BIT_7 or BIT_32)
+	 * that can be sent with Send(tic) or Send(tic, data).
+	 * @return true if it is a write
+	 */
+	boolean isWrite()
+	{
+		return this.type == CmdT.QUICK || this.type == CmdT.BIT_7 || this.type == CmdT.BIT_32;
+	}
+	
+	/**
+	 * Checks if the command takes a data value
+	 * @return true for BIT_7 and BIT_32 commands
+	 */
+	boolean hasData()
+	{
+		return this.type == CmdT.BIT_7 || this.type == CmdT.BIT_32;
+	}
+	
+	/**
+	 * Packs the data of a write command into the USB value field
+	 * @param data - The data to include with the command
+	 * @return the wValue of the request
+	 */
+	short wValue(int data)
+	{
+		switch(this.type)
+		{
+			case BIT_7:
+				assert (data >= 0 && data < 128);
+				return (short) data;
+			case BIT_32:
+				return (short) (data & 0xFFFF);
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Packs the data of a write command into the USB index field
+	 * @param data - The data to include with the command
+	 * @return the wIndex of the request
+	 */
+	short wIndex(int data)
+	{
+		if (this.type == CmdT.BIT_32)
+		{
+			return (short) ((data >> 16) & 0xFFFF);
+		}
+		return 0;
+	}
+	
+	/**
+	 * Unpacks the data of a write command from the USB request fields.
+	 * The reverse of wValue() and wIndex().
+	 * @param wValue - The wValue of the request
+	 * @param wIndex - The wIndex of the request
+	 * @return the data sent with the command
+	 */
+	int data(short wValue, short wIndex)
+	{
+		switch(this.type)
+		{
+			case BIT_7:
+				return wValue & 0x7F;
+			case BIT_32:
+				return (wValue & 0xFFFF) | (wIndex << 16);
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Finds the command with a USB request code
+	 * @param code - The request code
+	 * @return the command or null if there is none
+	 */
+	static TicCmd fromCode(byte code)
+	{
+		for (TicCmd cmd : VALUES)
+		{
+			if (cmd.code == code)
+			{
+				return cmd;
+			}
+		}
+		return null;
+	}
+	
+	/** Cached values() so lookups don't allocate */
+	static private final TicCmd VALUES[] = values();
+	
 	/**
 	 * Sends command to the for QUICK commands that
 	 * don't have parameters.
@@ -95,21 +197,12 @@ public enum TicCmd {
 		switch(this.type)
 		{
 			case BIT_7:
-				assert (data >= 0 && data < 128);
-				tic.SyncIrp(
-		        	    (byte) 0x40,
-		        	    this.code,
-		        	    (short) data,
-		        	    (short) 0,
-		        	    0
-		        	    );
-		        break;
 			case BIT_32:
 				tic.SyncIrp(
 		        	    (byte) 0x40,
 		        	    this.code,
-		        	    (short) (data & 0xFFFF),
-		        	    (short) ((data >> 16) & 0xFFFF),
+		        	    wValue(data),
+		        	    wIndex(data),
 		        	    0);
 				break;
 			default:
@@ -0,0 +1,328 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.util.DefaultUsbControlIrp;
+
+/**
+ * A fixed sequence of TicCmd writes compiled once and sent many times.
+ *
+ * TicCmd.Send builds a new IRP for every command.  A program builds
+ * the IRPs for a TIC once (see bind()) and each run only patches the
+ * parameter slots into them and submits the whole sequence back to
+ * back, so running a program doesn't allocate.
+ *
+ * Commands added with a value have it baked in.  Commands that take
+ * data and are added without one get the next parameter slot, numbered
+ * from 0 in the order they are added.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicCmdProgram {
+
+	/** The commands in order */
+	private final TicCmd cmds[];
+
+	/** Slot of each command (-1 for baked in or no data) */
+	private final int slots[];
+
+	/** Baked in data of each command */
+	private final int values[];
+
+	/** Number of parameter slots */
+	private final int numSlots;
+
+	/**
+	 * Constructor
+	 * @param builder - The builder with the commands
+	 */
+	private TicCmdProgram(Builder builder)
+	{
+		int n = builder.cmds.size();
+		this.cmds = builder.cmds.toArray(new TicCmd[n]);
+		this.slots = new int[n];
+		this.values = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			this.slots[i] = builder.slots.get(i);
+			this.values[i] = builder.values.get(i);
+		}
+		this.numSlots = builder.numSlots;
+	}
+
+	/**
+	 * Gets the number of commands in the program
+	 * @return the command count
+	 */
+	public int size()
+	{
+		return this.cmds.length;
+	}
+
+	/**
+	 * Gets the number of parameters a run takes
+	 * @return the slot count
+	 */
+	public int getNumberOfSlots()
+	{
+		return this.numSlots;
+	}
+
+	/**
+	 * Creates the IRPs of the program for one TIC.  A bound program is
+	 * not shared between threads; bind once per thread if needed.
+	 * @param tic - The tic interface to run on
+	 * @return the bound program
+	 */
+	public Bound bind(TicInterface tic)
+	{
+		return new Bound(tic);
+	}
+
+	/**
+	 * Builds a program
+	 */
+	static public class Builder {
+		private final List<TicCmd> cmds = new ArrayList<>();
+		private final List<Integer> slots = new ArrayList<>();
+		private final List<Integer> values = new ArrayList<>();
+		private int numSlots = 0;
+
+		/**
+		 * Adds a command.  If it takes data it gets the next parameter slot.
+		 * @param cmd - A QUICK, BIT_7 or BIT_32 command
+		 * @return this builder
+		 */
+		public Builder add(TicCmd cmd)
+		{
+			checkWrite(cmd);
+			this.cmds.add(cmd);
+			this.slots.add(cmd.hasData() ? this.numSlots++ : -1);
+			this.values.add(0);
+			return this;
+		}
+
+		/**
+		 * Adds a command with its data baked in
+		 * @param cmd - A BIT_7 or BIT_32 command
+		 * @param data - The data to send every run
+		 * @return this builder
+		 */
+		public Builder add(TicCmd cmd, int data)
+		{
+			checkWrite(cmd);
+			if (!cmd.hasData())
+			{
+				throw new IllegalArgumentException(cmd + " doesn't take data");
+			}
+			this.cmds.add(cmd);
+			this.slots.add(-1);
+			this.values.add(data);
+			return this;
+		}
+
+		/**
+		 * Compiles the program
+		 * @return the program
+		 */
+		public TicCmdProgram build()
+		{
+			return new TicCmdProgram(this);
+		}
+
+		/**
+		 * Checks that a command can go in a program
+		 * @param cmd - The command
+		 */
+		static private void checkWrite(TicCmd cmd)
+		{
+			if (!cmd.isWrite())
+			{
+				throw new IllegalArgumentException(cmd + " is not a write command");
+			}
+		}
+	}
+
+	/**
+	 * A program with its IRPs built for one TIC
+	 */
+	public class Bound {
+		private final TicInterface tic;
+
+		/** The IRPs in order */
+		private final SlotIrp irps[];
+
+		/** Unmodifiable view of irps for submitting */
+		private final List<UsbControlIrp> irpList;
+
+		/** Number of runs that completed */
+		private long runs = 0;
+
+		/** Total time of the runs that completed */
+		private long runNanos = 0;
+
+		/**
+		 * Constructor
+		 * @param tic - The tic interface to run on
+		 */
+		private Bound(TicInterface tic)
+		{
+			this.tic = tic;
+			this.irps = new SlotIrp[cmds.length];
+			for (int i = 0; i < cmds.length; i++)
+			{
+				this.irps[i] = new SlotIrp(cmds[i]);
+				if (slots[i] < 0)
+				{
+					this.irps[i].patch(values[i]);
+				}
+			}
+			this.irpList = Collections.unmodifiableList(Arrays.<UsbControlIrp>asList(this.irps));
+		}
+
+		/**
+		 * Runs the program
+		 * @param params - One value for each parameter slot
+		 * @throws UsbException - Missing Device
+		 * @throws UsbDisconnectedException - Missing Device
+		 */
+		public synchronized void run(int params[]) throws UsbDisconnectedException, UsbException
+		{
+			if (params.length < numSlots)
+			{
+				throw new IllegalArgumentException("program takes " + numSlots + " parameters");
+			}
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < this.irps.length; i++)
+			{
+				if (slots[i] >= 0)
+				{
+					this.irps[i].patch(params[slots[i]]);
+				}
+				this.irps[i].reset();
+			}
+
+			this.tic.SyncIrps(this.irpList);
+
+			this.runNanos += System.nanoTime() - start;
+			this.runs++;
+		}
+
+		/**
+		 * Sends the same commands with individual TicCmd.Send calls, for
+		 * comparing against run().
+		 * @param params - One value for each parameter slot
+		 * @throws UsbException - Missing Device
+		 * @throws UsbDisconnectedException - Missing Device
+		 */
+		public void sendIndividually(int params[]) throws UsbDisconnectedException, UsbException
+		{
+			for (int i = 0; i < cmds.length; i++)
+			{
+				if (!cmds[i].hasData())
+				{
+					cmds[i].Send(this.tic);
+				}
+				else
+				{
+					cmds[i].Send(this.tic, slots[i] >= 0 ? params[slots[i]] : values[i]);
+				}
+			}
+		}
+
+		/**
+		 * Measures the average time per command of run() and of
+		 * sendIndividually().  This sends the program 2 * iterations
+		 * times so only use it when the commands are safe to repeat.
+		 * @param params - One value for each parameter slot
+		 * @param iterations - Number of times to send each way
+		 * @return { nanoseconds per command with run(),
+		 * 			nanoseconds per command with sendIndividually() }
+		 * @throws UsbException - Missing Device
+		 * @throws UsbDisconnectedException - Missing Device
+		 */
+		public long[] measure(int params[], int iterations) throws UsbDisconnectedException, UsbException
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+			{
+				run(params);
+			}
+			long program = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+			{
+				sendIndividually(params);
+			}
+			long individual = System.nanoTime() - start;
+
+			long commands = (long) iterations * cmds.length;
+			return new long[] { program / commands, individual / commands };
+		}
+
+		/**
+		 * Gets the number of runs that completed
+		 * @return the run count
+		 */
+		public synchronized long getRuns()
+		{
+			return this.runs;
+		}
+
+		/**
+		 * Gets the average time per command of the runs so far
+		 * @return nanoseconds per command (0 if no runs)
+		 */
+		public synchronized long getNanosPerCommand()
+		{
+			return this.runs == 0 ? 0 : this.runNanos / (this.runs * cmds.length);
+		}
+	}
+
+	/**
+	 * A control IRP whose value and index can be patched between runs
+	 */
+	static private class SlotIrp extends DefaultUsbControlIrp {
+		private final TicCmd cmd;
+
+		/**
+		 * Constructor
+		 * @param cmd - The command this IRP sends
+		 */
+		private SlotIrp(TicCmd cmd)
+		{
+			super((byte) 0x40, cmd.code(), (short) 0, (short) 0);
+			this.cmd = cmd;
+		}
+
+		/**
+		 * Puts the command data in the request fields
+		 * @param data - The data to send
+		 */
+		private void patch(int data)
+		{
+			this.wValue = this.cmd.wValue(data);
+			this.wIndex = this.cmd.wIndex(data);
+		}
+
+		/**
+		 * Clears the state from the last submission
+		 */
+		private void reset()
+		{
+			setComplete(false);
+			setActualLength(0);
+			setUsbException(null);
+		}
+	}
+}
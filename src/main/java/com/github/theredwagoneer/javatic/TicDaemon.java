@@ -0,0 +1,299 @@
+package com.github.theredwagoneer.javatic;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * Owns a set of TICs and shares them with other JVMs through a
+ * TicStatusBoard.
+ *
+ * Only one process can own a TIC's USB device.  The daemon samples each
+ * TIC with a TicStatusPublisher and writes the latest status into the
+ * board, where readers in other JVMs get it without any USB traffic.
+ * Commands put in the board's mailboxes are sent to the TICs by the
+ * daemon.  Each TIC has its own sending thread, so a TIC that is slow
+ * or being recovered only holds up its own mailbox.
+ *
+ * It can be run on its own:
+ * <pre>
+ * java com.github.theredwagoneer.javatic.TicDaemon board-file period-ms name=serial ...
+ * </pre>
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicDaemon implements AutoCloseable {
+
+	/** Time between checks of the mailboxes */
+	static private final long MAILBOX_POLL_MICROS = 500;
+
+	/** Number of mailbox checks between heartbeats */
+	static private final int HEARTBEAT_POLLS = 200;
+
+	private final TicStatusBoard board;
+
+	/** The TICs in slot order */
+	private final TicInterface tics[];
+
+	/** Slot of each TIC */
+	private final Map<TicInterface,Integer> slots = new IdentityHashMap<>();
+
+	private final TicStatusPublisher publisher;
+
+	private final ScheduledExecutorService mailboxes;
+
+	/** Thread sending the commands of each slot */
+	private final ExecutorService senders[];
+
+	/** 1 while a slot's command is with its sender */
+	private final AtomicIntegerArray sending;
+
+	/** Mailbox checks since the last heartbeat (mailbox thread only) */
+	private int polls = 0;
+
+	/**
+	 * Constructor: Starts sharing the TICs
+	 * @param boardPath - File for the board
+	 * @param period - Time between samples of each TIC
+	 * @param unit - Unit of period
+	 * @param tics - The TICs by name (names are at most TicStatusBoard.MAX_NAME bytes)
+	 * @throws IOException - The board couldn't be made
+	 */
+	public TicDaemon(Path boardPath, long period, TimeUnit unit, Map<String,TicInterface> tics) throws IOException
+	{
+		this.board = TicStatusBoard.create(boardPath, tics.keySet().toArray(new String[0]));
+		this.tics = tics.values().toArray(new TicInterface[0]);
+		for (int i = 0; i < this.tics.length; i++)
+		{
+			this.slots.put(this.tics[i], i);
+		}
+
+		ThreadFactory threads = TicThreads.daemon("tic-daemon-send");
+		this.senders = new ExecutorService[this.tics.length];
+		for (int i = 0; i < this.tics.length; i++)
+		{
+			this.senders[i] = Executors.newSingleThreadExecutor(threads);
+		}
+		this.sending = new AtomicIntegerArray(this.tics.length);
+
+		this.publisher = new TicStatusPublisher(period, unit, this.tics);
+		this.publisher.subscribe(new BoardWriter(), TicStatusPublisher.Overflow.LATEST, 1);
+
+		this.mailboxes = Executors.newSingleThreadScheduledExecutor(TicThreads.daemon("tic-daemon-mailbox"));
+		this.mailboxes.scheduleWithFixedDelay(this::pollMailboxes, 0, MAILBOX_POLL_MICROS, TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Gets the board
+	 * @return the board being written
+	 */
+	public TicStatusBoard getBoard()
+	{
+		return this.board;
+	}
+
+	/**
+	 * Stops sharing the TICs.  The TICs themselves are left alone.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.publisher.close();
+		this.mailboxes.shutdownNow();
+		for (ExecutorService sender : this.senders)
+		{
+			sender.shutdownNow();
+		}
+		this.board.close();
+	}
+
+	/**
+	 * Hands the commands waiting in the mailboxes to their senders and
+	 * updates the heartbeat.  Never waits for USB.
+	 */
+	private void pollMailboxes()
+	{
+		if (++this.polls >= HEARTBEAT_POLLS)
+		{
+			this.polls = 0;
+			this.board.heartbeat();
+		}
+
+		for (int slot = 0; slot < this.tics.length; slot++)
+		{
+			// A command stays in the mailbox until its sender acknowledges it
+			if (!this.board.hasCommand(slot) || !this.sending.compareAndSet(slot, 0, 1))
+			{
+				continue;
+			}
+
+			TicCmd cmd = TicCmd.fromCode(this.board.getCommand(slot));
+			if (cmd == null || !cmd.isWrite())
+			{
+				acknowledge(slot, TicStatusBoard.RESULT_BAD_COMMAND);
+				continue;
+			}
+
+			int data = this.board.getCommandData(slot);
+			int target = slot;
+			try
+			{
+				this.senders[slot].execute(() -> send(target, cmd, data));
+			}
+			catch (RejectedExecutionException e)
+			{
+				// Closing
+				this.sending.set(slot, 0);
+			}
+		}
+	}
+
+	/**
+	 * Sends a mailbox command to its TIC and acknowledges it.  Runs on
+	 * the slot's sender.
+	 * @param slot - The slot
+	 * @param cmd - The command
+	 * @param data - The command data
+	 */
+	private void send(int slot, TicCmd cmd, int data)
+	{
+		int result = TicStatusBoard.RESULT_USB_ERROR;
+		try
+		{
+			if (cmd.hasData())
+			{
+				cmd.Send(this.tics[slot], data);
+			}
+			else
+			{
+				cmd.Send(this.tics[slot]);
+			}
+			result = TicStatusBoard.RESULT_OK;
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			// Missing TIC
+		}
+		finally
+		{
+			acknowledge(slot, result);
+		}
+	}
+
+	/**
+	 * Acknowledges a slot's command and lets the next one through
+	 * @param slot - The slot
+	 * @param result - RESULT_OK, RESULT_USB_ERROR or RESULT_BAD_COMMAND
+	 */
+	private void acknowledge(int slot, int result)
+	{
+		this.board.acknowledge(slot, result);
+		this.sending.set(slot, 0);
+	}
+
+	/**
+	 * Writes the samples into the board.  The publisher delivers them
+	 * one at a time, so each slot has a single writer.
+	 */
+	private class BoardWriter implements Flow.Subscriber<TicStatus> {
+		private final byte scratch[] = new byte[TicStatus.BLOCK_LENGTH];
+		private Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			this.subscription = subscription;
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(TicStatus status)
+		{
+			Integer slot = slots.get(status.getSource());
+			if (slot != null)
+			{
+				board.publish(slot, status, this.scratch);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable)
+		{
+			this.subscription = null;
+		}
+
+		@Override
+		public void onComplete()
+		{
+			this.subscription = null;
+		}
+	}
+
+	/**
+	 * Runs the daemon until the JVM is stopped.
+	 * @param args - board file, sample period in ms, then name=serial for each TIC
+	 * @throws Exception - The board couldn't be made
+	 */
+	public static void main(String args[]) throws Exception
+	{
+		if (args.length < 3)
+		{
+			System.err.println("usage: TicDaemon board-file period-ms name=serial ...");
+			System.exit(1);
+		}
+
+		List<String> names = new ArrayList<>();
+		List<TicStartup.Target> targets = new ArrayList<>();
+		for (int i = 2; i < args.length; i++)
+		{
+			String parts[] = args[i].split("=", 2);
+			if (parts.length != 2)
+			{
+				System.err.println("expected name=serial: " + args[i]);
+				System.exit(1);
+			}
+			names.add(parts[0]);
+			targets.add(new TicStartup.Target(null, parts[1], null));
+		}
+
+		TicStartup startup = TicStartup.connect(targets.toArray(new TicStartup.Target[0]));
+		Map<String,TicInterface> tics = new LinkedHashMap<>();
+		for (int i = 0; i < names.size(); i++)
+		{
+			tics.put(names.get(i), startup.getInterfaces().get(i));
+		}
+
+		TicDaemon daemon = new TicDaemon(Paths.get(args[0]), Long.parseLong(args[1]), TimeUnit.MILLISECONDS, tics);
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			try
+			{
+				daemon.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}));
+
+		startup.whenDone().join();
+		Thread.currentThread().join();
+	}
+}
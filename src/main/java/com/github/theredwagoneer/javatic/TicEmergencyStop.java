@@ -0,0 +1,449 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.util.DefaultUsbControlIrp;
+
+/**
+ * Stops a whole fleet of TICs at once.
+ *
+ * Every device gets its own thread and its own IRPs when it is added:
+ * the stop command (HALT_AND_HOLD or DEENERGIZE) followed by a read of
+ * the variables from OPERATION_STATE through CURRENT_VELOCITY.  trigger()
+ * wakes all of the threads, and each one sends the pair back to back
+ * until the read back shows the motor stopped or the confirm timeout
+ * runs out.  Nothing is allocated for the USB traffic and nothing waits
+ * for another device.
+ *
+ * The report of a trigger has the time from the trigger to each
+ * confirmation and to the last one.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicEmergencyStop implements AutoCloseable {
+
+	/** Default time to wait for a stop to show in the read back */
+	static public final long DEFAULT_CONFIRM_TIMEOUT_MS = 250;
+
+	/** Length of the read back, OPERATION_STATE through CURRENT_VELOCITY */
+	static private final int READ_LENGTH = TicVar.CURRENT_VELOCITY.offset() + TicVar.CURRENT_VELOCITY.length();
+
+	/** Pause between read backs that don't show a stop yet */
+	static private final long CONFIRM_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+	private final TicCmd stop;
+	private final long confirmTimeoutNanos;
+	private final ThreadFactory threads = TicThreads.daemon("tic-estop");
+	private final List<StopLine> lines = new CopyOnWriteArrayList<>();
+	private volatile Report lastReport = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param stop - HALT_AND_HOLD or DEENERGIZE
+	 */
+	public TicEmergencyStop(TicCmd stop)
+	{
+		this(stop, DEFAULT_CONFIRM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Constructor
+	 * @param stop - HALT_AND_HOLD or DEENERGIZE
+	 * @param confirmTimeout - Time to wait for each stop to show in the read back
+	 * @param unit - Unit of confirmTimeout
+	 */
+	public TicEmergencyStop(TicCmd stop, long confirmTimeout, TimeUnit unit)
+	{
+		if (stop != TicCmd.HALT_AND_HOLD && stop != TicCmd.DEENERGIZE)
+		{
+			throw new IllegalArgumentException("stop must be HALT_AND_HOLD or DEENERGIZE, not " + stop);
+		}
+		this.stop = stop;
+		this.confirmTimeoutNanos = unit.toNanos(confirmTimeout);
+	}
+
+	/**
+	 * Adds a TIC and starts its stop thread
+	 * @param tic - The tic interface
+	 */
+	public synchronized void addDevice(TicInterface tic)
+	{
+		if (this.closed)
+		{
+			throw new IllegalStateException("emergency stop is closed");
+		}
+		for (StopLine line : this.lines)
+		{
+			if (line.tic == tic)
+			{
+				return;
+			}
+		}
+		StopLine line = new StopLine(tic);
+		this.lines.add(line);
+		line.thread.start();
+	}
+
+	/**
+	 * Removes a TIC and ends its stop thread
+	 * @param tic - The tic interface
+	 */
+	public synchronized void removeDevice(TicInterface tic)
+	{
+		for (StopLine line : this.lines)
+		{
+			if (line.tic == tic)
+			{
+				this.lines.remove(line);
+				line.thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Stops every TIC.  Returns right away; the future completes once
+	 * every stop has been confirmed or has failed.
+	 * @return future of the report of this stop
+	 */
+	public CompletableFuture<Report> trigger()
+	{
+		StopLine snapshot[] = this.lines.toArray(new StopLine[0]);
+		Report report = new Report(System.nanoTime(), snapshot.length);
+		this.lastReport = report;
+
+		for (StopLine line : snapshot)
+		{
+			line.rounds.add(report);
+			if (line.ended)
+			{
+				// Closed after the snapshot; its thread won't take it
+				line.drain();
+			}
+		}
+		if (snapshot.length == 0)
+		{
+			report.future.complete(report);
+		}
+		return report.future;
+	}
+
+	/**
+	 * Stops every TIC and waits for the report
+	 * @return the report of this stop
+	 * @throws InterruptedException - Interrupted while waiting
+	 */
+	public Report triggerAndWait() throws InterruptedException
+	{
+		try
+		{
+			return trigger().get();
+		}
+		catch (ExecutionException e)
+		{
+			// The future is never completed exceptionally
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Gets the report of the latest trigger
+	 * @return the report (null if never triggered)
+	 */
+	public Report getLastReport()
+	{
+		return this.lastReport;
+	}
+
+	/**
+	 * Ends all of the stop threads.  Stops still in progress are reported
+	 * as failed.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		this.closed = true;
+		for (StopLine line : this.lines)
+		{
+			line.thread.interrupt();
+		}
+		this.lines.clear();
+	}
+
+	/**
+	 * The outcome of one trigger
+	 */
+	static public final class Report {
+		private final long triggerNanoTime;
+		private final Map<TicInterface,Long> latencies = new ConcurrentHashMap<>();
+		private final Map<TicInterface,Throwable> failures = new ConcurrentHashMap<>();
+		private final AtomicInteger remaining;
+		private final AtomicLong lastConfirmation = new AtomicLong();
+		private final CompletableFuture<Report> future = new CompletableFuture<>();
+
+		/**
+		 * Constructor
+		 * @param triggerNanoTime - System.nanoTime() of the trigger
+		 * @param devices - Number of TICs being stopped
+		 */
+		private Report(long triggerNanoTime, int devices)
+		{
+			this.triggerNanoTime = triggerNanoTime;
+			this.remaining = new AtomicInteger(devices);
+			this.lastConfirmation.set(triggerNanoTime);
+		}
+
+		/**
+		 * Records a confirmed stop
+		 * @param tic - The tic interface
+		 * @param nanoTime - System.nanoTime() of the confirmation
+		 */
+		private void confirmed(TicInterface tic, long nanoTime)
+		{
+			this.latencies.put(tic, nanoTime - this.triggerNanoTime);
+			this.lastConfirmation.accumulateAndGet(nanoTime, Math::max);
+			done();
+		}
+
+		/**
+		 * Records a failed stop
+		 * @param tic - The tic interface
+		 * @param cause - Why it failed
+		 */
+		private void failed(TicInterface tic, Throwable cause)
+		{
+			this.failures.put(tic, cause);
+			done();
+		}
+
+		/**
+		 * Completes the future after the last device
+		 */
+		private void done()
+		{
+			if (this.remaining.decrementAndGet() == 0)
+			{
+				this.future.complete(this);
+			}
+		}
+
+		/**
+		 * Checks if every TIC has been dealt with
+		 * @return true if the report is final
+		 */
+		public boolean isDone()
+		{
+			return this.future.isDone();
+		}
+
+		/**
+		 * Checks if every TIC confirmed the stop
+		 * @return true if the report is final with no failures
+		 */
+		public boolean isAllConfirmed()
+		{
+			return isDone() && this.failures.isEmpty();
+		}
+
+		/**
+		 * Gets the time of the trigger
+		 * @return System.nanoTime() of the trigger
+		 */
+		public long getTriggerNanoTime()
+		{
+			return this.triggerNanoTime;
+		}
+
+		/**
+		 * Gets the time from the trigger to the last confirmation so far
+		 * @return the stop latency in nanoseconds
+		 */
+		public long getLatencyNanos()
+		{
+			return this.lastConfirmation.get() - this.triggerNanoTime;
+		}
+
+		/**
+		 * Gets the time from the trigger to each confirmation
+		 * @return nanoseconds by tic interface, for the confirmed TICs
+		 */
+		public Map<TicInterface,Long> getLatencies()
+		{
+			return Collections.unmodifiableMap(this.latencies);
+		}
+
+		/**
+		 * Gets the TICs that didn't confirm the stop
+		 * @return the cause by tic interface.  A TimeoutException means
+		 * 			the transfers worked but the read back never showed a stop.
+		 */
+		public Map<TicInterface,Throwable> getFailures()
+		{
+			return Collections.unmodifiableMap(this.failures);
+		}
+	}
+
+	/**
+	 * The thread and IRPs that stop one TIC
+	 */
+	private class StopLine implements Runnable {
+		private final TicInterface tic;
+		private final Thread thread;
+		private final BlockingQueue<Report> rounds = new LinkedBlockingQueue<>();
+
+		/** Set once the thread stops taking reports */
+		private volatile boolean ended = false;
+
+		private final DefaultUsbControlIrp stopIrp;
+		private final DefaultUsbControlIrp readIrp;
+		private final byte readBuffer[] = new byte[READ_LENGTH];
+		private final List<UsbControlIrp> irps;
+
+		/**
+		 * Constructor
+		 * @param tic - The tic interface
+		 */
+		private StopLine(TicInterface tic)
+		{
+			this.tic = tic;
+			this.stopIrp = new DefaultUsbControlIrp((byte) 0x40, stop.code(), (short) 0, (short) 0);
+			this.readIrp = new DefaultUsbControlIrp((byte) 0xC0, TicCmd.GET_VARIABLE.code(), (short) 0, (short) 0);
+			this.readIrp.setData(this.readBuffer);
+			this.irps = Collections.unmodifiableList(Arrays.<UsbControlIrp>asList(this.stopIrp, this.readIrp));
+
+			this.thread = threads.newThread(this);
+			this.thread.setPriority(Thread.MAX_PRIORITY);
+		}
+
+		/**
+		 * Waits for triggers and stops the TIC
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Report report = this.rounds.take();
+					try
+					{
+						report.confirmed(this.tic, stopAndConfirm());
+					}
+					catch (UsbException | UsbDisconnectedException | TimeoutException e)
+					{
+						report.failed(this.tic, e);
+					}
+					catch (InterruptedException e)
+					{
+						// Removed or closed in the middle of this stop
+						report.failed(this.tic, new InterruptedException("emergency stop closed"));
+						break;
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Removed or closed
+			}
+
+			this.ended = true;
+			drain();
+		}
+
+		/**
+		 * Fails the reports no thread will take
+		 */
+		private void drain()
+		{
+			for (Report report = this.rounds.poll(); report != null; report = this.rounds.poll())
+			{
+				report.failed(this.tic, new InterruptedException("emergency stop closed"));
+			}
+		}
+
+		/**
+		 * Sends the stop and the read back until the read back shows it
+		 * @return System.nanoTime() of the confirmation
+		 * @throws UsbException - Missing Device
+		 * @throws UsbDisconnectedException - Missing Device
+		 * @throws TimeoutException - The stop didn't show in time
+		 * @throws InterruptedException - Removed or closed
+		 */
+		private long stopAndConfirm() throws UsbDisconnectedException, UsbException, TimeoutException, InterruptedException
+		{
+			long deadline = System.nanoTime() + confirmTimeoutNanos;
+			while (true)
+			{
+				reset(this.stopIrp);
+				reset(this.readIrp);
+				this.tic.SyncIrps(this.irps);
+
+				long now = System.nanoTime();
+				if (isStopped())
+				{
+					return now;
+				}
+				if (now - deadline >= 0)
+				{
+					throw new TimeoutException(stop + " not confirmed within "
+							+ TimeUnit.NANOSECONDS.toMillis(confirmTimeoutNanos) + " ms");
+				}
+				LockSupport.parkNanos(CONFIRM_POLL_NANOS);
+				if (Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+			}
+		}
+
+		/**
+		 * Checks the read back for the stop
+		 * @return true if the motor is stopped
+		 */
+		private boolean isStopped()
+		{
+			if (this.readIrp.getActualLength() < READ_LENGTH)
+			{
+				return false;
+			}
+
+			boolean normal = TicVar.OPERATION_STATE.decode(this.readBuffer, 0) == TicStatus.OPERATION_STATE_NORMAL;
+			if (stop == TicCmd.DEENERGIZE)
+			{
+				return !normal;
+			}
+			return !normal || TicVar.CURRENT_VELOCITY.decode(this.readBuffer, 0) == 0;
+		}
+	}
+
+	/**
+	 * Clears the state of an IRP from its last submission
+	 * @param irp - The IRP
+	 */
+	static private void reset(DefaultUsbControlIrp irp)
+	{
+		irp.setComplete(false);
+		irp.setActualLength(0);
+		irp.setUsbException(null);
+	}
+}
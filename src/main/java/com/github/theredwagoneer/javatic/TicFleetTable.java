@@ -0,0 +1,584 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+
+/**
+ * The latest status of a whole fleet of TICs, for fleet wide questions
+ * like "which axes have an error" without a bus sweep.
+ *
+ * Every TIC registered gets a row.  The values are kept by column, one
+ * long[] per TicVar of the status block, so a query walks a single
+ * primitive array and doesn't box.  The samplers keep the table up to
+ * date: subscribe it to a TicStatusPublisher (see subscribeTo()), add it
+ * as a TicBandwidthBudget listener, or call update() directly.
+ *
+ * Queries take no lock unless an update lands in the middle of one, in
+ * which case they run again under the read lock.  Because of that a
+ * LongPredicate given to a query may be called more than once for a row.
+ * Rows that haven't been sampled yet are left out of every query.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicFleetTable implements Consumer<TicStatus> {
+
+	/** Maximum number of rows */
+	private final int capacity;
+
+	/** Value columns by TicVar ordinal (null for variables outside the status block) */
+	private final long columns[][];
+
+	/** System.nanoTime() of each row's latest sample */
+	private final long nanoTimes[];
+
+	/** Whether each row has been sampled */
+	private final boolean sampled[];
+
+	/** Interface of each row */
+	private final TicInterface interfaces[];
+
+	/** Row of each interface */
+	private final Map<TicInterface,Integer> rows = new ConcurrentHashMap<>();
+
+	/** Number of rows in use */
+	private volatile int size = 0;
+
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Constructor
+	 * @param capacity - Maximum number of TICs in the table
+	 */
+	public TicFleetTable(int capacity)
+	{
+		this.capacity = capacity;
+		this.columns = new long[TicVar.values().length][];
+		for (TicVar var : TicVar.values())
+		{
+			if (TicStatus.contains(var))
+			{
+				this.columns[var.ordinal()] = new long[capacity];
+			}
+		}
+		this.nanoTimes = new long[capacity];
+		this.sampled = new boolean[capacity];
+		this.interfaces = new TicInterface[capacity];
+	}
+
+	/**
+	 * Adds a TIC to the table.  Adding one that is already in it returns
+	 * its existing row.
+	 * @param tic - The tic interface
+	 * @return the row of the TIC
+	 * @throws IllegalStateException - if the table is full
+	 */
+	public int register(TicInterface tic)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{
+			Integer row = this.rows.get(tic);
+			if (row != null)
+			{
+				return row;
+			}
+			if (this.size == this.capacity)
+			{
+				throw new IllegalStateException("fleet table is full (" + this.capacity + " rows)");
+			}
+			int newRow = this.size;
+			this.interfaces[newRow] = tic;
+			this.rows.put(tic, newRow);
+			this.size = newRow + 1;
+			return newRow;
+		}
+		finally
+		{
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Subscribes the table to a publisher.  Every device of the publisher
+	 * should be registered first; samples of other devices are ignored.
+	 * @param publisher - The publisher to take samples from
+	 */
+	public void subscribeTo(TicStatusPublisher publisher)
+	{
+		publisher.subscribe(new Flow.Subscriber<TicStatus>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription)
+			{
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(TicStatus status)
+			{
+				update(status);
+			}
+
+			@Override
+			public void onError(Throwable throwable)
+			{
+			}
+
+			@Override
+			public void onComplete()
+			{
+			}
+		}, TicStatusPublisher.Overflow.BUFFER, Math.max(TicStatusPublisher.DEFAULT_BUFFER, 2 * this.capacity));
+	}
+
+	/**
+	 * Same as update(), so the table can be a TicBandwidthBudget listener
+	 * @param status - A snapshot of a registered TIC
+	 */
+	@Override
+	public void accept(TicStatus status)
+	{
+		update(status);
+	}
+
+	/**
+	 * Stores a snapshot in the row of the TIC it was read from.  Snapshots
+	 * of TICs that aren't registered are ignored.
+	 * @param status - The snapshot
+	 */
+	public void update(TicStatus status)
+	{
+		Integer row = status.getSource() == null ? null : this.rows.get(status.getSource());
+		if (row != null)
+		{
+			update(row, status);
+		}
+	}
+
+	/**
+	 * Stores a snapshot in a row, for example one read from a TicStatusBoard
+	 * @param row - The row
+	 * @param status - The snapshot
+	 */
+	public void update(int row, TicStatus status)
+	{
+		checkRow(row);
+
+		long stamp = this.lock.writeLock();
+		try
+		{
+			// Skip snapshots that are older than the one stored
+			if (this.sampled[row] && status.getNanoTime() - this.nanoTimes[row] < 0)
+			{
+				return;
+			}
+			for (TicVar var : TicVar.values())
+			{
+				long column[] = this.columns[var.ordinal()];
+				if (column != null)
+				{
+					column[row] = status.get(var);
+				}
+			}
+			this.nanoTimes[row] = status.getNanoTime();
+			this.sampled[row] = true;
+		}
+		finally
+		{
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Gets the number of TICs in the table
+	 * @return the number of rows
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Gets the row of a TIC
+	 * @param tic - The tic interface
+	 * @return the row (-1 if not registered)
+	 */
+	public int getRow(TicInterface tic)
+	{
+		Integer row = this.rows.get(tic);
+		return row == null ? -1 : row;
+	}
+
+	/**
+	 * Gets the TIC of a row
+	 * @param row - The row
+	 * @return the tic interface
+	 */
+	public TicInterface getInterface(int row)
+	{
+		checkRow(row);
+		return this.interfaces[row];
+	}
+
+	/**
+	 * Checks if a row has been sampled
+	 * @param row - The row
+	 * @return true if the row holds a snapshot
+	 */
+	public boolean isSampled(int row)
+	{
+		checkRow(row);
+		return read(() -> this.sampled[row] ? 1 : 0) != 0;
+	}
+
+	/**
+	 * Gets the time of a row's latest snapshot
+	 * @param row - The row
+	 * @return System.nanoTime() of the read (0 if not sampled)
+	 */
+	public long getNanoTime(int row)
+	{
+		checkRow(row);
+		return read(() -> this.nanoTimes[row]);
+	}
+
+	/**
+	 * Gets a value
+	 * @param row - The row
+	 * @param var - The variable
+	 * @return the latest value (0 if not sampled)
+	 */
+	public long get(int row, TicVar var)
+	{
+		checkRow(row);
+		long column[] = column(var);
+		return read(() -> column[row]);
+	}
+
+	/**
+	 * Finds the rows where a variable passes a test
+	 * @param var - The variable
+	 * @param test - The test of the value
+	 * @param result - Filled with the matching rows; size() entries always fit
+	 * @return the number of matching rows
+	 */
+	public int filter(TicVar var, LongPredicate test, int result[])
+	{
+		long column[] = column(var);
+		return (int) read(() ->
+		{
+			int n = this.size;
+			int count = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row] && test.test(column[row]))
+				{
+					store(result, count++, row);
+				}
+			}
+			return count;
+		});
+	}
+
+	/**
+	 * Finds the rows where a variable has any of the bits of a mask set,
+	 * for example ERROR_STATUS or MISC_FLAGS_1
+	 * @param var - The variable
+	 * @param mask - The bits to look for
+	 * @param result - Filled with the matching rows; size() entries always fit
+	 * @return the number of matching rows
+	 */
+	public int filterAny(TicVar var, long mask, int result[])
+	{
+		return filter(var, value -> (value & mask) != 0, result);
+	}
+
+	/**
+	 * Finds the rows where the motor is moving (see TicStatus.isMoving())
+	 * @param result - Filled with the matching rows; size() entries always fit
+	 * @return the number of moving rows
+	 */
+	public int filterMoving(int result[])
+	{
+		long state[] = column(TicVar.OPERATION_STATE);
+		long velocity[] = column(TicVar.CURRENT_VELOCITY);
+		long mode[] = column(TicVar.PLANNING_MODE);
+		long target[] = column(TicVar.TARGET_POSITION);
+		long position[] = column(TicVar.CURRENT_POSITION);
+		long targetVelocity[] = column(TicVar.TARGET_VELOCITY);
+		return (int) read(() ->
+		{
+			int n = this.size;
+			int count = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row] && TicStatus.isMoving(state[row], velocity[row], mode[row],
+						target[row], position[row], targetVelocity[row]))
+				{
+					store(result, count++, row);
+				}
+			}
+			return count;
+		});
+	}
+
+	/**
+	 * Finds the rows whose latest snapshot is older than a limit, or that
+	 * haven't been sampled at all
+	 * @param maxAge - Oldest snapshot allowed
+	 * @param unit - Unit of maxAge
+	 * @param result - Filled with the stale rows; size() entries always fit
+	 * @return the number of stale rows
+	 */
+	public int filterStale(long maxAge, TimeUnit unit, int result[])
+	{
+		long maxAgeNanos = unit.toNanos(maxAge);
+		return (int) read(() ->
+		{
+			long now = System.nanoTime();
+			int n = this.size;
+			int count = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (!this.sampled[row] || now - this.nanoTimes[row] > maxAgeNanos)
+				{
+					store(result, count++, row);
+				}
+			}
+			return count;
+		});
+	}
+
+	/**
+	 * Counts the rows where a variable passes a test
+	 * @param var - The variable
+	 * @param test - The test of the value
+	 * @return the number of matching rows
+	 */
+	public int count(TicVar var, LongPredicate test)
+	{
+		long column[] = column(var);
+		return (int) read(() ->
+		{
+			int n = this.size;
+			int count = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row] && test.test(column[row]))
+				{
+					count++;
+				}
+			}
+			return count;
+		});
+	}
+
+	/**
+	 * Checks if a variable passes a test in every sampled row
+	 * @param var - The variable
+	 * @param test - The test of the value
+	 * @return true if no sampled row fails the test
+	 */
+	public boolean allMatch(TicVar var, LongPredicate test)
+	{
+		return count(var, test.negate()) == 0;
+	}
+
+	/**
+	 * Gets the smallest value of a variable
+	 * @param var - The variable
+	 * @return the minimum (Long.MAX_VALUE if nothing is sampled)
+	 */
+	public long min(TicVar var)
+	{
+		long column[] = column(var);
+		return read(() ->
+		{
+			int n = this.size;
+			long min = Long.MAX_VALUE;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row])
+				{
+					min = Math.min(min, column[row]);
+				}
+			}
+			return min;
+		});
+	}
+
+	/**
+	 * Gets the largest value of a variable
+	 * @param var - The variable
+	 * @return the maximum (Long.MIN_VALUE if nothing is sampled)
+	 */
+	public long max(TicVar var)
+	{
+		long column[] = column(var);
+		return read(() ->
+		{
+			int n = this.size;
+			long max = Long.MIN_VALUE;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row])
+				{
+					max = Math.max(max, column[row]);
+				}
+			}
+			return max;
+		});
+	}
+
+	/**
+	 * Gets the sum of a variable over the sampled rows
+	 * @param var - The variable
+	 * @return the sum
+	 */
+	public long sum(TicVar var)
+	{
+		long column[] = column(var);
+		return read(() ->
+		{
+			int n = this.size;
+			long sum = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row])
+				{
+					sum += column[row];
+				}
+			}
+			return sum;
+		});
+	}
+
+	/**
+	 * Gets the mean of a variable over the sampled rows
+	 * @param var - The variable
+	 * @return the mean (NaN if nothing is sampled)
+	 */
+	public double mean(TicVar var)
+	{
+		long column[] = column(var);
+
+		// One scan so the count and the sum come from the same rows
+		return Double.longBitsToDouble(read(() ->
+		{
+			int n = this.size;
+			int count = 0;
+			long sum = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row])
+				{
+					count++;
+					sum += column[row];
+				}
+			}
+			return Double.doubleToRawLongBits(count == 0 ? Double.NaN : (double) sum / count);
+		}));
+	}
+
+	/**
+	 * Gets the largest distance of a variable from a reference value, for
+	 * example VIN_VOLTAGE from the nominal supply
+	 * @param var - The variable
+	 * @param reference - The value to measure from
+	 * @return the largest absolute difference (0 if nothing is sampled)
+	 */
+	public long maxDeviation(TicVar var, long reference)
+	{
+		long column[] = column(var);
+		return read(() ->
+		{
+			int n = this.size;
+			long max = 0;
+			for (int row = 0; row < n; row++)
+			{
+				if (this.sampled[row])
+				{
+					max = Math.max(max, Math.abs(column[row] - reference));
+				}
+			}
+			return max;
+		});
+	}
+
+	/**
+	 * Runs a scan without locking and again under the read lock if an
+	 * update got in the way
+	 * @param scan - The scan
+	 * @return the result of the scan
+	 */
+	private long read(LongSupplier scan)
+	{
+		long stamp = this.lock.tryOptimisticRead();
+		if (stamp != 0)
+		{
+			long result = scan.getAsLong();
+			if (this.lock.validate(stamp))
+			{
+				return result;
+			}
+		}
+
+		stamp = this.lock.readLock();
+		try
+		{
+			return scan.getAsLong();
+		}
+		finally
+		{
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Gets the column of a variable
+	 * @param var - The variable
+	 * @return the column
+	 * @throws IllegalArgumentException - if the variable isn't in the status block
+	 */
+	private long[] column(TicVar var)
+	{
+		long column[] = this.columns[var.ordinal()];
+		if (column == null)
+		{
+			throw new IllegalArgumentException(var + " is not part of the status block");
+		}
+		return column;
+	}
+
+	/**
+	 * Checks a row number
+	 * @param row - The row
+	 */
+	private void checkRow(int row)
+	{
+		if (row < 0 || row >= this.size)
+		{
+			throw new IndexOutOfBoundsException("row " + row + " of " + this.size);
+		}
+	}
+
+	/**
+	 * Stores a matching row if the result array has room for it
+	 * @param result - The result array
+	 * @param index - Where to store it
+	 * @param row - The row
+	 */
+	static private void store(int result[], int index, int row)
+	{
+		if (index < result.length)
+		{
+			result[index] = row;
+		}
+	}
+}
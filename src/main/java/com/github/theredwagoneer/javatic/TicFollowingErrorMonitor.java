@@ -0,0 +1,415 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * Watches the following error of a closed loop axis, that is the
+ * difference between CURRENT_POSITION and the scaled ENCODER_POSITION.
+ *
+ * Both positions are read in the same GET_VARIABLE transfer at a fixed
+ * rate so they always belong together.  The running statistics (max,
+ * RMS and percentiles over a window of recent samples) are kept in
+ * atomics and can be read from any thread without locking.  Updating
+ * them doesn't allocate.
+ *
+ * Listeners are told when the error goes over the stall threshold for a
+ * number of samples in a row and when it comes back under.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicFollowingErrorMonitor implements AutoCloseable {
+
+	/**
+	 * Gets told when an axis stalls or recovers.  Called on the thread
+	 * that took the sample, one call at a time, so it should return
+	 * quickly.
+	 */
+	public interface StallListener {
+		/**
+		 * The following error has been over the threshold for the
+		 * configured number of samples.
+		 * @param monitor - The monitor that saw it
+		 * @param error - The following error of the last sample
+		 */
+		void onStall(TicFollowingErrorMonitor monitor, long error);
+
+		/**
+		 * The following error is back under the threshold
+		 * @param monitor - The monitor that saw it
+		 * @param error - The following error of the last sample
+		 */
+		default void onRecover(TicFollowingErrorMonitor monitor, long error)
+		{
+		}
+	}
+
+	/** First variable of the block read every sample */
+	static private final TicVar FIRST = TicVar.CURRENT_POSITION;
+
+	/** Length of the block, from CURRENT_POSITION through ENCODER_POSITION */
+	static private final short BLOCK_LENGTH =
+			(short) (TicVar.ENCODER_POSITION.offset() + TicVar.ENCODER_POSITION.length() - FIRST.offset());
+
+	private final TicInterface tic;
+
+	/** Microsteps per encoder count */
+	private final double encoderScale;
+
+	/** Recent errors.  Length is a power of two. */
+	private final AtomicLongArray window;
+
+	/** Samples taken since the last reset (also the next window slot) */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Largest absolute error since the last reset */
+	private final AtomicLong maxError = new AtomicLong();
+
+	/** Sum of the squared errors as double bits */
+	private final AtomicLong sumSquares = new AtomicLong();
+
+	/** Failed reads */
+	private final AtomicLong missed = new AtomicLong();
+
+	/** Error of the latest sample */
+	private volatile long lastError = 0;
+
+	/** Absolute error that counts as a stall */
+	private volatile long stallThreshold = Long.MAX_VALUE;
+
+	/** Samples in a row over the threshold before a stall is reported */
+	private volatile int stallSamples = 1;
+
+	/** Guards the stall state, since sample() may run on several threads */
+	private final Object stallLock = new Object();
+
+	/** Samples in a row over the threshold so far (guarded by stallLock) */
+	private int overCount = 0;
+
+	/** True while stalled (written under stallLock) */
+	private volatile boolean stalled = false;
+
+	private final List<StallListener> listeners = new CopyOnWriteArrayList<>();
+
+	private final ScheduledExecutorService scheduler;
+
+	private ScheduledFuture<?> sampling = null;
+
+	/**
+	 * Constructor
+	 * @param tic - The tic interface of the axis
+	 * @param encoderScale - Microsteps per encoder count
+	 * @param windowSize - Number of recent samples used for percentiles
+	 * 					(rounded up to a power of two)
+	 */
+	public TicFollowingErrorMonitor(TicInterface tic, double encoderScale, int windowSize)
+	{
+		if (windowSize < 1 || windowSize > (1 << 24))
+		{
+			throw new IllegalArgumentException("bad window size");
+		}
+		this.tic = tic;
+		this.encoderScale = encoderScale;
+		int size = 1;
+		while (size < windowSize)
+		{
+			size <<= 1;
+		}
+		this.window = new AtomicLongArray(size);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(TicThreads.daemon("tic-following-error"));
+	}
+
+	/**
+	 * Sets when a stall is reported
+	 * @param threshold - Absolute error (microsteps) that counts as a stall
+	 * @param samples - Number of samples in a row over the threshold
+	 */
+	public void setStallThreshold(long threshold, int samples)
+	{
+		if (threshold < 0 || samples < 1)
+		{
+			throw new IllegalArgumentException("bad stall threshold");
+		}
+		this.stallThreshold = threshold;
+		this.stallSamples = samples;
+	}
+
+	/**
+	 * Adds a stall listener
+	 * @param listener - The listener
+	 */
+	public void addStallListener(StallListener listener)
+	{
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Removes a stall listener
+	 * @param listener - The listener
+	 */
+	public void removeStallListener(StallListener listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Starts sampling
+	 * @param period - Time between samples
+	 * @param unit - Unit of period
+	 */
+	public synchronized void start(long period, TimeUnit unit)
+	{
+		stop();
+		this.sampling = this.scheduler.scheduleAtFixedRate(this::sample, 0, period, unit);
+	}
+
+	/**
+	 * Stops sampling.  The statistics are kept.
+	 */
+	public synchronized void stop()
+	{
+		if (this.sampling != null)
+		{
+			this.sampling.cancel(false);
+			this.sampling = null;
+		}
+	}
+
+	/**
+	 * Stops sampling and releases the thread
+	 */
+	@Override
+	public void close()
+	{
+		stop();
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Clears the statistics and the stall state.  The listeners aren't
+	 * told; a stall that goes on is reported again once it has lasted
+	 * the configured number of samples.  Samples taken while clearing
+	 * may be partly counted.
+	 */
+	public void reset()
+	{
+		this.count.set(0);
+		this.maxError.set(0);
+		this.sumSquares.set(Double.doubleToRawLongBits(0.0));
+		this.missed.set(0);
+		synchronized (this.stallLock)
+		{
+			this.overCount = 0;
+			this.stalled = false;
+		}
+	}
+
+	/**
+	 * Takes one sample.  Called by the sampling thread, but can be
+	 * called directly to sample on demand.
+	 * @return true if the positions were read
+	 */
+	public boolean sample()
+	{
+		byte bytes[];
+		try
+		{
+			bytes = TicCmd.GET_VARIABLE.Send(this.tic, (short) FIRST.offset(), BLOCK_LENGTH);
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			this.missed.incrementAndGet();
+			return false;
+		}
+
+		long current = TicVar.CURRENT_POSITION.decode(bytes, FIRST.offset());
+		long encoder = TicVar.ENCODER_POSITION.decode(bytes, FIRST.offset());
+		record(current - Math.round(encoder * this.encoderScale));
+		return true;
+	}
+
+	/**
+	 * Adds an error to the statistics and checks for stalls
+	 * @param error - The following error
+	 */
+	private void record(long error)
+	{
+		long abs = Math.abs(error);
+		long n = this.count.getAndIncrement();
+
+		this.window.set((int) (n & (this.window.length() - 1)), error);
+		this.lastError = error;
+
+		long max;
+		do
+		{
+			max = this.maxError.get();
+		}
+		while (abs > max && !this.maxError.compareAndSet(max, abs));
+
+		long bits;
+		do
+		{
+			bits = this.sumSquares.get();
+		}
+		while (!this.sumSquares.compareAndSet(bits,
+				Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + (double) error * error)));
+
+		// Listeners are called under the lock so each change is told once
+		// and in order
+		synchronized (this.stallLock)
+		{
+			if (abs > this.stallThreshold)
+			{
+				if (++this.overCount >= this.stallSamples && !this.stalled)
+				{
+					this.stalled = true;
+					for (StallListener listener : this.listeners)
+					{
+						listener.onStall(this, error);
+					}
+				}
+			}
+			else
+			{
+				this.overCount = 0;
+				if (this.stalled)
+				{
+					this.stalled = false;
+					for (StallListener listener : this.listeners)
+					{
+						listener.onRecover(this, error);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the interface being monitored
+	 * @return the tic interface
+	 */
+	public TicInterface getInterface()
+	{
+		return this.tic;
+	}
+
+	/**
+	 * Gets the number of samples since the last reset
+	 * @return the sample count
+	 */
+	public long getSampleCount()
+	{
+		return this.count.get();
+	}
+
+	/**
+	 * Gets the number of failed reads since the last reset
+	 * @return the failed read count
+	 */
+	public long getMissedCount()
+	{
+		return this.missed.get();
+	}
+
+	/**
+	 * Gets the error of the latest sample
+	 * @return the following error in microsteps
+	 */
+	public long getLastError()
+	{
+		return this.lastError;
+	}
+
+	/**
+	 * Gets the largest absolute error since the last reset
+	 * @return the error in microsteps
+	 */
+	public long getMaxError()
+	{
+		return this.maxError.get();
+	}
+
+	/**
+	 * Gets the RMS error since the last reset
+	 * @return the error in microsteps (0 if no samples)
+	 */
+	public double getRmsError()
+	{
+		long n = this.count.get();
+		if (n == 0)
+		{
+			return 0;
+		}
+		return Math.sqrt(Double.longBitsToDouble(this.sumSquares.get()) / n);
+	}
+
+	/**
+	 * Checks if the axis is currently stalled
+	 * @return true if stalled
+	 */
+	public boolean isStalled()
+	{
+		return this.stalled;
+	}
+
+	/**
+	 * Gets the window size used for percentiles
+	 * @return the number of samples in a full window
+	 */
+	public int getWindowSize()
+	{
+		return this.window.length();
+	}
+
+	/**
+	 * Gets a percentile of the absolute error over the recent window
+	 * @param percentile - The percentile (0 to 100)
+	 * @return the error in microsteps (0 if no samples)
+	 */
+	public long getPercentile(double percentile)
+	{
+		return getPercentile(percentile, new long[this.window.length()]);
+	}
+
+	/**
+	 * Gets a percentile of the absolute error over the recent window
+	 * without allocating.
+	 * @param percentile - The percentile (0 to 100)
+	 * @param scratch - Work array at least getWindowSize() long
+	 * @return the error in microsteps (0 if no samples)
+	 */
+	public long getPercentile(double percentile, long scratch[])
+	{
+		if (percentile < 0 || percentile > 100)
+		{
+			throw new IllegalArgumentException("percentile must be in [0, 100]");
+		}
+
+		int n = (int) Math.min(this.count.get(), this.window.length());
+		if (n == 0)
+		{
+			return 0;
+		}
+
+		for (int i = 0; i < n; i++)
+		{
+			scratch[i] = Math.abs(this.window.get(i));
+		}
+		Arrays.sort(scratch, 0, n);
+
+		int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+		return scratch[Math.max(0, Math.min(n - 1, index))];
+	}
+}
@@ -0,0 +1,526 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * Homes a group of axes at the same time.
+ *
+ * Each axis is a TIC homed with GO_HOME.  Axes without dependencies
+ * start together; an axis that depends on others (like X and Y on Z)
+ * starts as soon as all of them are homed.  While an axis is homing
+ * its OPERATION_STATE and MISC_FLAGS_1 are polled every poll period.
+ * It is homed once the homing active flag has been seen set and then
+ * neither the homing active nor the position uncertain flag is set.
+ * An axis that doesn't show the homing active flag within a second of
+ * GO_HOME fails.
+ *
+ * home() gives a future for each axis and one for the whole group, and
+ * records how long each axis took from GO_HOME to the poll that saw it
+ * homed.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicHomingOrchestrator implements AutoCloseable {
+
+	/** Default time between polls of a homing axis */
+	static public final long DEFAULT_POLL_MS = 20;
+
+	/** Default longest time an axis may take to home */
+	static public final long DEFAULT_TIMEOUT_MS = 60_000;
+
+	/** Threads sending commands and polling */
+	static private final int POOL_SIZE = 4;
+
+	/** Length of the poll read, OPERATION_STATE and MISC_FLAGS_1 */
+	static private final short POLL_LENGTH = 2;
+
+	/** Longest time from GO_HOME to the homing active flag showing */
+	static private final long START_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final long pollNanos;
+	private final long timeoutNanos;
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/** The axes by name in the order they were added */
+	private final Map<String,Axis> axes = new LinkedHashMap<>();
+
+	/** Time each axis took the last time it was homed */
+	private final Map<String,Long> homingNanos = new ConcurrentHashMap<>();
+
+	/** Futures of the axes not finished yet */
+	private final Set<CompletableFuture<Long>> pending = ConcurrentHashMap.newKeySet();
+
+	/** Axes homing right now */
+	private final Set<AxisRun> running = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor with the default poll period and timeout
+	 */
+	public TicHomingOrchestrator()
+	{
+		this(DEFAULT_POLL_MS, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Constructor
+	 * @param pollPeriod - Time between polls of a homing axis
+	 * @param timeout - Longest time an axis may take to home
+	 * @param unit - Unit of pollPeriod and timeout
+	 */
+	public TicHomingOrchestrator(long pollPeriod, long timeout, TimeUnit unit)
+	{
+		this.pollNanos = unit.toNanos(pollPeriod);
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.scheduler = new ScheduledThreadPoolExecutor(POOL_SIZE, TicThreads.daemon("tic-homing"));
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Adds an axis that homes in the direction of its AUTO_HOMING_FORWARD
+	 * setting at its configured homing speeds
+	 * @param name - Name of the axis
+	 * @param tic - The tic interface of the axis
+	 */
+	public synchronized void addAxis(String name, TicInterface tic)
+	{
+		addAxis(name, new Axis(name, tic, null, 0, 0));
+	}
+
+	/**
+	 * Adds an axis with its own direction and speeds.  The speeds are
+	 * written to HOMING_SPEED_TOWARDS and HOMING_SPEED_AWAY before each
+	 * homing.  If either one changed the TIC is reinitialized to load it.
+	 * Every axis is energized and taken out of safe start before GO_HOME.
+	 * @param name - Name of the axis
+	 * @param tic - The tic interface of the axis
+	 * @param forward - true to home towards the forward limit switch
+	 * @param speedTowards - HOMING_SPEED_TOWARDS (0 to keep the setting)
+	 * @param speedAway - HOMING_SPEED_AWAY (0 to keep the setting)
+	 */
+	public synchronized void addAxis(String name, TicInterface tic, boolean forward, long speedTowards, long speedAway)
+	{
+		addAxis(name, new Axis(name, tic, forward, speedTowards, speedAway));
+	}
+
+	/**
+	 * Adds an axis
+	 * @param name - Name of the axis
+	 * @param axis - The axis
+	 */
+	private void addAxis(String name, Axis axis)
+	{
+		if (this.axes.containsKey(name))
+		{
+			throw new IllegalArgumentException("axis " + name + " already added");
+		}
+		this.axes.put(name, axis);
+	}
+
+	/**
+	 * Makes an axis wait for others to be homed before it starts
+	 * @param name - Name of the axis
+	 * @param homedFirst - Names of the axes to home before it
+	 */
+	public synchronized void addDependency(String name, String... homedFirst)
+	{
+		Axis axis = axis(name);
+		for (String first : homedFirst)
+		{
+			axis(first);
+			axis.dependencies.add(first);
+		}
+	}
+
+	/**
+	 * Starts homing every axis
+	 * @return the homing in progress
+	 * @throws IllegalStateException - if the dependencies have a cycle or
+	 * 			the orchestrator is closed
+	 */
+	public synchronized Homing home()
+	{
+		if (this.closed)
+		{
+			throw new IllegalStateException("homing orchestrator is closed");
+		}
+
+		Map<String,CompletableFuture<Long>> futures = new LinkedHashMap<>();
+		for (String name : order())
+		{
+			Axis axis = this.axes.get(name);
+
+			List<CompletableFuture<Long>> before = new ArrayList<>();
+			for (String dependency : axis.dependencies)
+			{
+				before.add(futures.get(dependency));
+			}
+
+			CompletableFuture<Long> future = CompletableFuture
+					.allOf(before.toArray(new CompletableFuture<?>[0]))
+					.thenComposeAsync(v -> new AxisRun(axis).start(), this.scheduler);
+			futures.put(name, future);
+			this.pending.add(future);
+			future.whenComplete((nanos, e) -> this.pending.remove(future));
+		}
+		return new Homing(futures);
+	}
+
+	/**
+	 * Gets the time each axis took the last time it was homed
+	 * @return nanoseconds from GO_HOME to homed by axis name
+	 */
+	public Map<String,Long> getHomingNanos()
+	{
+		return Collections.unmodifiableMap(this.homingNanos);
+	}
+
+	/**
+	 * Stops the polling threads.  Homing in progress is left to finish on
+	 * the TICs.  The futures of the axes not homed yet, including the
+	 * ones waiting for others, fail with an InterruptedException.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		this.closed = true;
+		this.scheduler.shutdownNow();
+
+		for (AxisRun run : this.running)
+		{
+			run.fail(new InterruptedException("homing orchestrator closed"));
+		}
+		for (CompletableFuture<Long> future : this.pending)
+		{
+			future.completeExceptionally(new InterruptedException("homing orchestrator closed"));
+		}
+	}
+
+	/**
+	 * Gets an axis by name
+	 * @param name - Name of the axis
+	 * @return the axis
+	 */
+	private Axis axis(String name)
+	{
+		Axis axis = this.axes.get(name);
+		if (axis == null)
+		{
+			throw new IllegalArgumentException("no axis named " + name);
+		}
+		return axis;
+	}
+
+	/**
+	 * Orders the axes so each comes after its dependencies
+	 * @return the axis names in order
+	 * @throws IllegalStateException - if the dependencies have a cycle
+	 */
+	private List<String> order()
+	{
+		List<String> order = new ArrayList<>();
+		Set<String> done = new HashSet<>();
+		Set<String> visiting = new HashSet<>();
+		for (String name : this.axes.keySet())
+		{
+			visit(name, done, visiting, order);
+		}
+		return order;
+	}
+
+	/**
+	 * Depth first step of order()
+	 * @param name - Axis to visit
+	 * @param done - Axes already ordered
+	 * @param visiting - Axes on the current path
+	 * @param order - The order so far
+	 */
+	private void visit(String name, Set<String> done, Set<String> visiting, List<String> order)
+	{
+		if (done.contains(name))
+		{
+			return;
+		}
+		if (!visiting.add(name))
+		{
+			throw new IllegalStateException("homing dependencies have a cycle through " + name);
+		}
+		for (String dependency : this.axes.get(name).dependencies)
+		{
+			visit(dependency, done, visiting, order);
+		}
+		visiting.remove(name);
+		done.add(name);
+		order.add(name);
+	}
+
+	/**
+	 * A homing in progress
+	 */
+	static public final class Homing {
+		private final Map<String,CompletableFuture<Long>> axes;
+		private final CompletableFuture<Map<String,Long>> group;
+
+		/**
+		 * Constructor
+		 * @param axes - Future of each axis by name
+		 */
+		private Homing(Map<String,CompletableFuture<Long>> axes)
+		{
+			this.axes = axes;
+			this.group = CompletableFuture
+					.allOf(axes.values().toArray(new CompletableFuture<?>[0]))
+					.thenApply(v ->
+					{
+						Map<String,Long> nanos = new LinkedHashMap<>();
+						for (Map.Entry<String,CompletableFuture<Long>> entry : axes.entrySet())
+						{
+							nanos.put(entry.getKey(), entry.getValue().join());
+						}
+						return Collections.unmodifiableMap(nanos);
+					});
+		}
+
+		/**
+		 * Gets the future of an axis
+		 * @param name - Name of the axis
+		 * @return future of the nanoseconds the axis took to home.  It
+		 * 			fails if the axis or one it depends on failed.
+		 */
+		public CompletableFuture<Long> getAxis(String name)
+		{
+			CompletableFuture<Long> future = this.axes.get(name);
+			if (future == null)
+			{
+				throw new IllegalArgumentException("no axis named " + name);
+			}
+			return future.copy();
+		}
+
+		/**
+		 * Gets the future of the whole group
+		 * @return future of the nanoseconds each axis took to home by
+		 * 			name.  It fails if any axis failed.
+		 */
+		public CompletableFuture<Map<String,Long>> whenDone()
+		{
+			return this.group.copy();
+		}
+	}
+
+	/**
+	 * An axis and how to home it
+	 */
+	static private final class Axis {
+		private final String name;
+		private final TicInterface tic;
+		private final Boolean forward;
+		private final long speedTowards;
+		private final long speedAway;
+		private final Set<String> dependencies = new HashSet<>();
+
+		/**
+		 * Constructor
+		 * @param name - Name of the axis
+		 * @param tic - The tic interface of the axis
+		 * @param forward - Homing direction (null for AUTO_HOMING_FORWARD)
+		 * @param speedTowards - HOMING_SPEED_TOWARDS (0 to keep the setting)
+		 * @param speedAway - HOMING_SPEED_AWAY (0 to keep the setting)
+		 */
+		private Axis(String name, TicInterface tic, Boolean forward, long speedTowards, long speedAway)
+		{
+			this.name = name;
+			this.tic = tic;
+			this.forward = forward;
+			this.speedTowards = speedTowards;
+			this.speedAway = speedAway;
+		}
+	}
+
+	/**
+	 * One homing of one axis
+	 */
+	private final class AxisRun implements Runnable {
+		private final Axis axis;
+		private final CompletableFuture<Long> future = new CompletableFuture<>();
+		private long start;
+		private volatile ScheduledFuture<?> poll;
+
+		/** Whether a poll has seen the homing active flag */
+		private boolean homingSeen = false;
+
+		/**
+		 * Constructor
+		 * @param axis - The axis to home
+		 */
+		private AxisRun(Axis axis)
+		{
+			this.axis = axis;
+		}
+
+		/**
+		 * Sends GO_HOME and starts polling
+		 * @return future of the nanoseconds the axis took to home
+		 */
+		private CompletableFuture<Long> start()
+		{
+			running.add(this);
+			this.future.whenComplete((nanos, e) -> running.remove(this));
+			if (closed)
+			{
+				fail(new InterruptedException("homing orchestrator closed"));
+				return this.future;
+			}
+
+			try
+			{
+				boolean changed = setSpeed(TicSet.HOMING_SPEED_TOWARDS, this.axis.speedTowards);
+				changed |= setSpeed(TicSet.HOMING_SPEED_AWAY, this.axis.speedAway);
+				if (changed)
+				{
+					// The TIC only loads its settings on REINITIALIZE
+					TicCmd.REINITIALIZE.Send(this.axis.tic);
+				}
+				TicCmd.ENERGIZE.Send(this.axis.tic);
+				TicCmd.EXIT_SAFE_START.Send(this.axis.tic);
+
+				boolean forward = (this.axis.forward != null) ? this.axis.forward
+						: TicSet.AUTO_HOMING_FORWARD.get(this.axis.tic) != 0;
+
+				this.start = System.nanoTime();
+				TicCmd.GO_HOME.Send(this.axis.tic, forward ? 1 : 0);
+			}
+			catch (UsbDisconnectedException | UsbException e)
+			{
+				fail(e);
+				return this.future;
+			}
+
+			this.poll = scheduler.scheduleWithFixedDelay(this, pollNanos, pollNanos, TimeUnit.NANOSECONDS);
+			if (this.future.isDone())
+			{
+				// Closed while GO_HOME was being sent
+				this.poll.cancel(false);
+			}
+			return this.future;
+		}
+
+		/**
+		 * Writes a homing speed if it differs from the TIC's setting
+		 * @param setting - HOMING_SPEED_TOWARDS or HOMING_SPEED_AWAY
+		 * @param speed - The speed (0 to keep the setting)
+		 * @return true if the setting changed
+		 * @throws UsbException - Missing Device
+		 * @throws UsbDisconnectedException - Missing Device
+		 */
+		private boolean setSpeed(TicSet setting, long speed) throws UsbDisconnectedException, UsbException
+		{
+			if (speed == 0 || setting.get(this.axis.tic) == speed)
+			{
+				return false;
+			}
+			setting.set(this.axis.tic, speed);
+			return true;
+		}
+
+		/**
+		 * Polls the homing flags
+		 */
+		@Override
+		public void run()
+		{
+			// Skip a poll that beats start() storing the schedule
+			if (this.future.isDone() || this.poll == null)
+			{
+				return;
+			}
+
+			long now;
+			try
+			{
+				byte bytes[] = TicCmd.GET_VARIABLE.Send(this.axis.tic, (short) TicVar.OPERATION_STATE.offset(), POLL_LENGTH);
+				now = System.nanoTime();
+
+				long state = TicVar.OPERATION_STATE.decode(bytes, 0);
+				long flags = TicVar.MISC_FLAGS_1.decode(bytes, 0);
+				if ((flags & TicStatus.MISC_FLAGS_1_HOMING_ACTIVE) != 0)
+				{
+					this.homingSeen = true;
+				}
+				else if (this.homingSeen && (flags & TicStatus.MISC_FLAGS_1_POSITION_UNCERTAIN) == 0)
+				{
+					finish(now);
+					return;
+				}
+				if (this.homingSeen && state != TicStatus.OPERATION_STATE_NORMAL)
+				{
+					fail(new IllegalStateException("axis " + this.axis.name
+							+ " left normal operation while homing (OPERATION_STATE " + state + ")"));
+					return;
+				}
+				// Flags that are clear before GO_HOME takes effect don't count,
+				// and the TIC may still be starting up after ENERGIZE
+				if (!this.homingSeen && now - this.start > START_GRACE_NANOS)
+				{
+					fail(new IllegalStateException("axis " + this.axis.name + " didn't start homing within "
+							+ TimeUnit.NANOSECONDS.toMillis(START_GRACE_NANOS) + " ms of GO_HOME"));
+					return;
+				}
+			}
+			catch (UsbDisconnectedException | UsbException e)
+			{
+				fail(e);
+				return;
+			}
+
+			if (now - this.start > timeoutNanos)
+			{
+				fail(new TimeoutException("axis " + this.axis.name + " not homed within "
+						+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+			}
+		}
+
+		/**
+		 * Completes the axis
+		 * @param now - System.nanoTime() of the poll that saw it homed
+		 */
+		private void finish(long now)
+		{
+			this.poll.cancel(false);
+			long nanos = now - this.start;
+			homingNanos.put(this.axis.name, nanos);
+			this.future.complete(nanos);
+		}
+
+		/**
+		 * Fails the axis
+		 * @param cause - Why it failed
+		 */
+		private void fail(Throwable cause)
+		{
+			ScheduledFuture<?> poll = this.poll;
+			if (poll != null)
+			{
+				poll.cancel(false);
+			}
+			this.future.completeExceptionally(cause);
+		}
+	}
+}
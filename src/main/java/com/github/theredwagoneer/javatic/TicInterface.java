@@ -4,6 +4,11 @@ import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.usb.UsbControlIrp;
 import javax.usb.UsbDevice;
@@ -12,6 +17,7 @@ import javax.usb.UsbDisconnectedException;
 import javax.usb.UsbException;
 import javax.usb.UsbHostManager;
 import javax.usb.UsbHub;
+import javax.usb.UsbPort;
 import javax.usb.UsbServices;
 import javax.usb.event.UsbServicesEvent;
 import javax.usb.event.UsbServicesListener;
@@ -45,8 +51,11 @@ public class TicInterface {
     	}
 	}
 	
+	/** Pololu USB vendor ID */
+	static final int TIC_VENDOR_ID = 0x1ffb;
+	
 	/** Usb Interface to TIC */
-	private UsbDevice ticDev = null;
+	private volatile UsbDevice ticDev = null;
 	
 	/** Model number of TIC to search for (0 for Any) */
 	private int searchModelNum;
@@ -55,10 +64,46 @@ public class TicInterface {
     private String searchSerialNum;
     
     /** Flag to indicate if we are currently searching for a TIC */
-    private boolean isSearching = false;
+    private volatile boolean isSearching = false;
     
     /** Map of the settings to apply when we find a TIC */
-    private Map<TicSet,Long> ticSettings;
+    private volatile Map<TicSet,Long> ticSettings;
+    
+    /** Completes the first time a TIC is found and configured */
+    private final CompletableFuture<TicInterface> ready = new CompletableFuture<>();
+    
+    /** Number of control transfers submitted to the TIC */
+    private final LongAdder transferCount = new LongAdder();
+    
+    /** How to recover from failed transfers */
+    private volatile TicRecoveryPolicy recoveryPolicy = TicRecoveryPolicy.DEFAULT;
+    
+    /** Counters of the recoveries */
+    private final TicRecoveryStats recoveryStats = new TicRecoveryStats();
+    
+    /** Hub the TIC was found on (for re-probing) */
+    private volatile UsbHub ticHub = null;
+    
+    /** Port the TIC was found on (for re-probing) */
+    private byte ticPort = 0;
+    
+    /** Serial number of the TIC that was found (for re-probing) */
+    private String ticSerial = null;
+    
+    /** System.nanoTime() of the first failure of the current outage (0 if none) */
+    private final AtomicLong outageStart = new AtomicLong();
+    
+    /** Flag to indicate settings are being reapplied during a recovery */
+    private volatile boolean isRecovering = false;
+    
+    /** How the current handle was found (null for the first one) */
+    private volatile TicRecoveryStats.Stage foundBy = null;
+    
+    /** System.nanoTime() the current handle was found */
+    private volatile long foundAt = 0;
+    
+    /** Host side copy of the commanded variables */
+    private final TicShadow shadow = new TicShadow();
     
     /**
      * Class to listen for new USB devices and see if they are us.
@@ -70,16 +115,20 @@ public class TicInterface {
 		@Override
 		public void usbDeviceAttached(UsbServicesEvent event) 
 		{
-    		if( ticDev == null )
-    		{
-    			isSearching = true;
-    			if ( assignTicDev() )
-    			{
-    				applySettings_impl();
-       			}
-    			isSearching = false;
-    		}
-			
+			synchronized (TicInterface.this)
+			{
+	    		if( ticDev == null )
+	    		{
+	    			isSearching = true;
+	    			boolean found = assignTicDev();
+	    			isSearching = false;
+	    			if ( found )
+	    			{
+	    				foundBy(TicRecoveryStats.Stage.HOTPLUG);
+	    				applySettings_impl();
+	       			}
+	    		}
+			}
 		}
 
 		@Override
@@ -149,6 +198,100 @@ public class TicInterface {
     	commonConstructor();
     }
     
+    /**
+     * Constructor: Doesn't search for the TIC.  Used by TicStartup which
+     * does the search in the background and then calls attach().
+     * @param model - Model of TIC to use (null for any)
+     * @param serial - Serial number of TIC to use (null for any)
+     * @param settings - Settings to apply when the TIC is found (null for none)
+     */
+    TicInterface(TicModel model, String serial, Map<TicSet,Long> settings)
+    {
+    	this.searchModelNum = (model == null) ? 0 : model.code;
+    	this.searchSerialNum = serial;
+    	if (settings != null)
+    	{
+    		this.ticSettings = new HashMap<> (settings);
+    	}
+    }
+    
+    /**
+     * Attaches a TIC found by a background search and starts listening 
+     * for hotplug events like the public constructors do.
+     * @param services - The USB services to listen to
+     * @param device - The TIC found for this interface (null if none)
+     */
+    void attach(UsbServices services, UsbDevice device)
+    {
+    	plugged(device);
+    	services.addUsbServicesListener(new CompassSearchListener());
+    }
+    
+    /**
+     * Takes a TIC that was just plugged in, the same as the hotplug 
+     * listener finding it.  Does nothing if this interface still has 
+     * a handle; a stale one is replaced by the next recovery.
+     * @param device - The TIC (null if none)
+     */
+    synchronized void plugged(UsbDevice device)
+    {
+    	if (device != null && this.ticDev == null)
+    	{
+    		setTicDev(device);
+    		foundBy(TicRecoveryStats.Stage.HOTPLUG);
+    		applySettings_impl();
+    	}
+    }
+    
+    /**
+     * Checks if a device is one this interface is searching for
+     * @param desc - Descriptor of the device
+     * @param serial - Serial number of the device
+     * @return true if it matches
+     */
+    boolean matches(UsbDeviceDescriptor desc, String serial)
+    {
+    	return isTic(desc, TIC_VENDOR_ID, this.searchModelNum)
+    			&& (this.searchSerialNum == null || this.searchSerialNum.equals(serial));
+    }
+    
+    /**
+     * Gets the serial number this interface is searching for
+     * @return the serial number (null for any)
+     */
+    String getSearchSerial()
+    {
+    	return this.searchSerialNum;
+    }
+    
+    /**
+     * Gets the model this interface is searching for
+     * @return the product code (0 for any)
+     */
+    int getSearchModel()
+    {
+    	return this.searchModelNum;
+    }
+    
+    /**
+     * Gets a future that completes the first time a TIC has been found
+     * and configured for this interface.  
+     * @return the future
+     */
+    public CompletableFuture<TicInterface> whenReady()
+    {
+    	return this.ready.copy();
+    }
+    
+    /**
+     * Fails the future from whenReady() when the TIC can never be found
+     * @param cause - Why it can't be found
+     */
+    void failReady(Throwable cause)
+    {
+    	this.ready.completeExceptionally(cause);
+    }
+    
     /**
      * Save a map of settings that will be applied to any TIC
      * that is assigned to the interface.
@@ -161,6 +304,26 @@ public class TicInterface {
 
  	}
 	
+	/**
+	 * Save a map of settings to apply when a TIC is reconnected without
+	 * applying them now.  Used when the settings were already written
+	 * some other way, like by TicProvisioner.
+	 * @param settingsIn - Map of settings and values
+	 */
+	void rememberSettings(Map<TicSet,Long> settingsIn)
+	{
+		this.ticSettings = new HashMap<> (settingsIn);
+	}
+	
+	/**
+	 * Get the hub the TIC was last found on
+	 * @return the hub (null if not known)
+	 */
+	UsbHub getHub()
+	{
+		return this.ticHub;
+	}
+	
 	/**
 	 * Set the position of the motor 
 	 * @param pos - position (in microsteps)
@@ -222,6 +385,89 @@ public class TicInterface {
 		}
 	}
 
+	/**
+	 * Get the number of control transfers submitted to the TIC
+	 * since this interface was created.  Failed transfers are counted
+	 * since they use the bus as well.
+	 * @return the transfer count
+	 */
+	public long getTransferCount()
+	{
+		return this.transferCount.sum();
+	}
+
+	/**
+	 * Set how the interface recovers from failed transfers
+	 * @param policy - The recovery policy (TicRecoveryPolicy.NONE to 
+	 * 					drop the TIC on the first failure)
+	 */
+	public void setRecoveryPolicy(TicRecoveryPolicy policy)
+	{
+		this.recoveryPolicy = policy;
+	}
+	
+	/**
+	 * Get the counters of the recoveries from failed transfers
+	 * @return the recovery stats
+	 */
+	public TicRecoveryStats getRecoveryStats()
+	{
+		return this.recoveryStats;
+	}
+
+	/**
+	 * Turn the host side copy of commanded variables on or off.  While
+	 * it is on (the default), TicVar.get() returns the last value sent
+	 * for TARGET_POSITION, TARGET_VELOCITY, MAX_SPEED, STARTING_SPEED,
+	 * MAX_ACCELERATION, MAX_DECELERATION, STEP_MODE, CURRENT_LIMIT and
+	 * DECAY_MODE instead of reading the TIC.  Turn it off if something
+	 * other than this interface commands the TIC.
+	 * @param enabled - true to serve commanded variables locally
+	 */
+	public void setShadowing(boolean enabled)
+	{
+		this.shadow.setEnabled(enabled);
+	}
+	
+	/**
+	 * Set how old a copied variable may get before TicVar.get() reads
+	 * it from the TIC again to check the copy.
+	 * @param period - Maximum age (0 to never check)
+	 * @param unit - Unit of period
+	 */
+	public void setShadowVerifyPeriod(long period, TimeUnit unit)
+	{
+		this.shadow.setVerifyNanos(unit.toNanos(period));
+	}
+	
+	/**
+	 * Get the number of variable reads served from the host side copy
+	 * @return the count
+	 */
+	public long getShadowHits()
+	{
+		return this.shadow.getHits();
+	}
+	
+	/**
+	 * Get the number of times the host side copy differed from the TIC
+	 * when it was checked
+	 * @return the count
+	 */
+	public long getShadowMismatches()
+	{
+		return this.shadow.getMismatches();
+	}
+	
+	/**
+	 * Get the host side copy of commanded variables
+	 * @return the copy
+	 */
+	TicShadow shadow()
+	{
+		return this.shadow;
+	}
+
 	/**
 	 * Does the actual applying of settings to the TIC.
 	 * called when settings are first applied and also when the 
@@ -229,17 +475,19 @@ public class TicInterface {
 	 */
 	private void applySettings_impl()
 	{
+		Map<TicSet,Long> settings = this.ticSettings;
 		try 
 		{
-			if(ticSettings != null)
+			if(settings != null)
 			{
-				for (TicSet key : this.ticSettings.keySet())
+				for (TicSet key : settings.keySet())
 				{
-					key.set(this, this.ticSettings.get(key));
+					key.set(this, settings.get(key));
 				}
 			}
 			TicCmd.REINITIALIZE.Send(this);
 	 		TicCmd.ENERGIZE.Send(this);
+	 		this.ready.complete(this);
 		}
 		catch (UsbDisconnectedException | UsbException e)
 		{
@@ -248,12 +496,204 @@ public class TicInterface {
 		}
 	}
 	
+	/**
+	 * Assigns a TIC to the interface and remembers where it is so it
+	 * can be re-probed after a failure.
+	 * @param device - The TIC (null for none)
+	 */
+	private void setTicDev(UsbDevice device)
+	{
+		if (device != null)
+		{
+			try
+			{
+				UsbPort port = device.getParentUsbPort();
+				this.ticHub = port.getUsbHub();
+				this.ticPort = port.getPortNumber();
+				this.ticSerial = (this.searchSerialNum != null) ? 
+						this.searchSerialNum : device.getSerialNumberString();
+			}
+			catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e)
+			{
+				// Can't re-probe this one, rediscovery will have to do.
+				this.ticHub = null;
+			}
+		}
+		this.shadow.clear();
+		this.ticDev = device;
+	}
+	
+	/**
+	 * Recovers from a failed transfer according to the recovery policy.
+	 * @param failed - The device handle the transfer failed on
+	 * @param cause - Why it failed
+	 * @param attempt - Number of recoveries already tried for this transfer
+	 * @return the device to try the transfer on again
+	 * @throws UsbDisconnectedException , UsbException - cause if the TIC couldn't be recovered
+	 */
+	private UsbDevice recover(UsbDevice failed, Exception cause, int attempt) throws UsbDisconnectedException , UsbException
+	{
+		this.outageStart.compareAndSet(0, System.nanoTime());
+		
+		TicRecoveryPolicy policy = this.recoveryPolicy;
+		
+		if (!this.isRecovering && attempt <= policy.getRetries())
+		{
+			if (attempt < policy.getRetries() && !(cause instanceof UsbDisconnectedException))
+			{
+				this.recoveryStats.retries.increment();
+				LockSupport.parkNanos(policy.getBackoffNanos(attempt));
+				if (this.ticDev == failed)
+				{
+					return failed;
+				}
+			}
+			
+			UsbDevice device = relocate(failed, policy);
+			if (device != null)
+			{
+				return device;
+			}
+		}
+		
+		// This is a missing device or HW error
+		synchronized (this)
+		{
+			if (this.ticDev == failed)
+			{
+				this.ticDev = null;
+				this.recoveryStats.failures.increment();
+			}
+		}
+		if (cause instanceof UsbException)
+		{
+			throw (UsbException) cause;
+		}
+		throw (UsbDisconnectedException) cause;
+	}
+	
+	/**
+	 * Finds the TIC again after its handle failed, first on the port it
+	 * was on and then on the whole bus.  Settings are applied again if 
+	 * the handle changed.
+	 * @param failed - The handle that failed
+	 * @param policy - The recovery policy
+	 * @return the TIC or null if it wasn't found
+	 */
+	private synchronized UsbDevice relocate(UsbDevice failed, TicRecoveryPolicy policy)
+	{
+		UsbDevice current = this.ticDev;
+		if (current != null && current != failed)
+		{
+			// Another thread already recovered it
+			return current;
+		}
+		
+		UsbDevice found = null;
+		TicRecoveryStats.Stage stage = null;
+		
+		if (policy.isReprobe() && this.ticHub != null)
+		{
+			this.recoveryStats.reprobes.increment();
+			found = reprobe();
+			stage = TicRecoveryStats.Stage.REPROBE;
+		}
+		
+		if (found == null && policy.isRediscover())
+		{
+			this.recoveryStats.rediscoveries.increment();
+			this.ticDev = null;
+			if (assignTicDev())
+			{
+				found = this.ticDev;
+			}
+			stage = TicRecoveryStats.Stage.REDISCOVERY;
+		}
+		
+		if (found == null)
+		{
+			return null;
+		}
+		
+		// Counted as a recovery once a transfer goes through on it
+		setTicDev(found);
+		foundBy(stage);
+		if (found != failed)
+		{
+			// A new handle may be a TIC that was reset
+			this.isRecovering = true;
+			applySettings_impl();
+			this.isRecovering = false;
+		}
+		
+		return (this.ticDev == found) ? found : null;
+	}
+	
+	/**
+	 * Checks the port the TIC was on for a TIC with the same serial number
+	 * @return the TIC or null if it isn't there
+	 */
+	private UsbDevice reprobe()
+	{
+		try
+		{
+			UsbPort port = this.ticHub.getUsbPort(this.ticPort);
+			UsbDevice device = (port == null) ? null : port.getUsbDevice();
+			
+			if (device == null || device.isUsbHub()
+					|| !isTic(device.getUsbDeviceDescriptor(), TIC_VENDOR_ID, this.searchModelNum))
+			{
+				return null;
+			}
+			
+			if (this.ticSerial != null && !this.ticSerial.equals(device.getSerialNumberString()))
+			{
+				return null;
+			}
+			
+			return device;
+		}
+		catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Records how the current handle was found, for crediting the end
+	 * of an outage
+	 * @param stage - The stage that found it
+	 */
+	private void foundBy(TicRecoveryStats.Stage stage)
+	{
+		this.foundAt = System.nanoTime();
+		this.foundBy = stage;
+	}
+	
+	/**
+	 * Records the end of an outage after a transfer succeeds.  The
+	 * outage goes to the stage that found the handle if that happened
+	 * during the outage, and to a plain retry otherwise.
+	 */
+	private void transferSucceeded()
+	{
+		long start = this.outageStart.get();
+		if (start != 0 && this.outageStart.compareAndSet(start, 0))
+		{
+			TicRecoveryStats.Stage stage = this.foundBy;
+			if (stage == null || this.foundAt - start < 0)
+			{
+				stage = TicRecoveryStats.Stage.RETRY;
+			}
+			this.recoveryStats.endOutage(stage, System.nanoTime() - start);
+		}
+	}
+	
 	/**
 	 * Find a TIC and assign it to this interface
 	 * @return true if found. false if not found
 	 */
  	private boolean assignTicDev() {
- 		final int TIC_VENDOR_ID = 0x1ffb;
  		UsbHub hub;
  		UsbServices services;
  		
@@ -268,7 +708,7 @@ public class TicInterface {
 
 		try 
 		{
-			this.ticDev = findDevice(hub, TIC_VENDOR_ID, this.searchModelNum, this.searchSerialNum);	
+			setTicDev(findDevice(hub, TIC_VENDOR_ID, this.searchModelNum, this.searchSerialNum));	
 		} 
 		catch (SecurityException | UsbDisconnectedException e) 
 		{
@@ -307,39 +747,14 @@ public class TicInterface {
 	            if (device != null) return device;
 	        }
 	        
-	        if ( desc.idVendor() != vendorId )
+	        if ( !isTic(desc, vendorId, productId) )
 	        {
 	        	continue;	
 	        }
-	        	
-	        if (productId == 0)
-	        {
-	        	boolean foundMatch = false;
-	        	for ( TicModel model : TicModel.values() )
-	       		{
-	        		if (model.code == desc.idProduct() )
-	        		{
-	        			foundMatch = true;
-	        			break;
-	        		}	
-	       		}
-	        	
-	        	if (!foundMatch)
-	        	{
-        			continue;
-        		}
-	        }
-	        else // product Id is set
-	        {
-	        	if(desc.idProduct() != productId)
-	        	{
-	        		continue;
-	        	}
-	        }
 	        
 	        try 
 	        {
-				if (serialNum != null && serialNum != device.getSerialNumberString())
+				if (serialNum != null && !serialNum.equals(device.getSerialNumberString()))
 				{
 					continue;
 				}
@@ -355,6 +770,35 @@ public class TicInterface {
 	    return null;
 	}
 	
+	/**
+	 * Checks the descriptor of a device to see if it is a TIC
+	 * @param desc - Descriptor of the device
+	 * @param vendorId - vendor ID (Use Pololu)
+	 * @param productId - Model of Tic (0 for any)
+	 * @return true if it is a TIC of the requested model
+	 */
+	static boolean isTic(UsbDeviceDescriptor desc, int vendorId, int productId)
+	{
+		if ( desc.idVendor() != vendorId )
+		{
+			return false;
+		}
+		
+		if (productId != 0) 
+		{
+			return desc.idProduct() == productId;
+		}
+		
+		for ( TicModel model : TicModel.values() )
+		{
+			if (model.code == desc.idProduct() )
+			{
+				return true;
+			}	
+		}
+		return false;
+	}
+	
 	
 	/**
 	 * This is effectively a callback to the TicInterface instance from the TicCmd enum.
@@ -369,34 +813,44 @@ public class TicInterface {
 	 */
 	protected byte[] SyncIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex, int len) throws UsbDisconnectedException , UsbException
 	{
-		if (this.ticDev == null || this.isSearching)
+		UsbDevice dev = this.ticDev;
+		if (dev == null || this.isSearching)
 		{
 			throw new UsbException("No Tic Found");
 		}
 		
-		UsbControlIrp irp = this.ticDev.createUsbControlIrp(
-				bmRequestType,
-        	    bRequest,
-        	    wValue,
-        	    wIndex
-        	    );
-
-		if (len != 0)
+		UsbControlIrp irp;
+		for (int attempt = 0; ; attempt++)
 		{
-			irp.setLength(len);
-			irp.setData(new byte[len]);
+			irp = dev.createUsbControlIrp(
+					bmRequestType,
+	        	    bRequest,
+	        	    wValue,
+	        	    wIndex
+	        	    );
+	
+			if (len != 0)
+			{
+				irp.setLength(len);
+				irp.setData(new byte[len]);
+			}
+			
+			try {
+				this.transferCount.increment();
+				dev.syncSubmit(irp);
+			} catch (IllegalArgumentException e) {
+				// This is a programming error
+				e.printStackTrace();
+			} catch ( UsbDisconnectedException | UsbException e) {
+				dev = recover(dev, e, attempt);
+				continue;
+			}
+			
+			transferSucceeded();
+			break;
 		}
 		
-		try {
-			ticDev.syncSubmit(irp);
-		} catch (IllegalArgumentException e) {
-			// This is a programming error
-			e.printStackTrace();
-		} catch ( UsbDisconnectedException | UsbException e) {
-			// This is a missing device or HW error
-			this.ticDev = null;
-			throw e;
-		}
+		this.shadow.sent(bmRequestType, bRequest, wValue, wIndex);
 		
 		if (len != 0)
 		{
@@ -409,5 +863,53 @@ public class TicInterface {
 
 	
 	}
+	
+	/**
+	 * Submits a list of prepared control IRPs back to back.  Used for
+	 * IRPs that are built once and reused, like TicCmdProgram's.  The
+	 * IRPs must be reset before each submission.
+	 * @param irps - The IRPs to submit in order
+	 * @throws UsbDisconnectedException , UsbException - Indicates a missing USB device
+	 */
+	protected void SyncIrps(List<UsbControlIrp> irps) throws UsbDisconnectedException , UsbException
+	{
+		UsbDevice dev = this.ticDev;
+		if (dev == null || this.isSearching)
+		{
+			throw new UsbException("No Tic Found");
+		}
+		
+		for (int attempt = 0; ; attempt++)
+		{
+			try {
+				this.transferCount.add(irps.size());
+				dev.syncSubmit(irps);
+			} catch (IllegalArgumentException e) {
+				// This is a programming error
+				e.printStackTrace();
+			} catch ( UsbDisconnectedException | UsbException e) {
+				dev = recover(dev, e, attempt);
+				
+				// Send the whole list again.  The commands are all safe to repeat.
+				for (int i = 0; i < irps.size(); i++)
+				{
+					UsbControlIrp irp = irps.get(i);
+					irp.setComplete(false);
+					irp.setActualLength(0);
+					irp.setUsbException(null);
+				}
+				continue;
+			}
+			
+			transferSucceeded();
+			break;
+		}
+		
+		for (int i = 0; i < irps.size(); i++)
+		{
+			UsbControlIrp irp = irps.get(i);
+			this.shadow.sent(irp.bmRequestType(), irp.bRequest(), irp.wValue(), irp.wIndex());
+		}
+	}
 
 }
@@ -0,0 +1,501 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.util.DefaultUsbControlIrp;
+
+/**
+ * Applies a settings profile to many TICs at once.
+ *
+ * applySettings() reads and writes each setting byte with its own
+ * transfer.  The provisioner instead reads the settings the profile
+ * touches in blocks, works out which bytes change, writes all of them
+ * back to back, and sends REINITIALIZE and ENERGIZE the same as
+ * applySettings().  It then reads the blocks again to verify every
+ * byte of the profile.
+ *
+ * TICs are grouped by the hub they are on.  Each hub gets at most
+ * perHub lanes working through its TICs one at a time, and the lanes of
+ * all hubs share a fixed number of workers.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicProvisioner implements AutoCloseable {
+
+	/** Bytes read with each GET_SETTING */
+	static private final int BLOCK = 32;
+
+	/** SET_SETTING transfers submitted between progress updates */
+	static private final int WRITE_BATCH = 16;
+
+	/** Size of the settings space */
+	static private final int SETTINGS_SIZE = 256;
+
+	/**
+	 * Where a TIC is in provisioning
+	 */
+	static public enum State {
+		QUEUED, READING, WRITING, REINITIALIZING, VERIFYING, DONE, FAILED;
+	}
+
+	private final ExecutorService workers;
+	private final int perHub;
+
+	/** Provisionings not finished yet */
+	private final Set<Provisioning> active = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param workers - Most TICs provisioned at the same time
+	 * @param perHub - Most TICs on one hub provisioned at the same time
+	 */
+	public TicProvisioner(int workers, int perHub)
+	{
+		if (workers < 1 || perHub < 1)
+		{
+			throw new IllegalArgumentException("workers and perHub must be at least 1");
+		}
+		this.workers = Executors.newFixedThreadPool(workers, TicThreads.daemon("tic-provision"));
+		this.perHub = perHub;
+	}
+
+	/**
+	 * Starts provisioning
+	 * @param profile - The settings and values to apply
+	 * @param tics - The TICs to apply them to
+	 * @return the provisioning in progress
+	 */
+	public Provisioning provision(Map<TicSet,Long> profile, Collection<TicInterface> tics)
+	{
+		return provision(profile, tics, null);
+	}
+
+	/**
+	 * Starts provisioning
+	 * @param profile - The settings and values to apply
+	 * @param tics - The TICs to apply them to
+	 * @param listener - Called from the workers and close() on every progress change (null for none)
+	 * @return the provisioning in progress
+	 */
+	public Provisioning provision(Map<TicSet,Long> profile, Collection<TicInterface> tics, Consumer<Progress> listener)
+	{
+		if (this.closed)
+		{
+			throw new IllegalStateException("provisioner is closed");
+		}
+
+		Map<TicSet,Long> settings = Collections.unmodifiableMap(new HashMap<>(profile));
+		Provisioning provisioning = new Provisioning(settings, tics, listener);
+		this.active.add(provisioning);
+		provisioning.future.whenComplete((p, e) -> this.active.remove(p));
+
+		// Lanes of each hub.  TICs with no known hub get a lane each.
+		Map<Object,List<List<Progress>>> hubs = new LinkedHashMap<>();
+		for (Progress progress : provisioning.progress)
+		{
+			Object hub = progress.tic.getHub();
+			if (hub == null)
+			{
+				hub = progress;
+			}
+			List<List<Progress>> lanes = hubs.computeIfAbsent(hub, h -> new ArrayList<>());
+			if (lanes.size() < this.perHub)
+			{
+				lanes.add(new ArrayList<>());
+			}
+			List<Progress> lane = lanes.get(0);
+			for (List<Progress> l : lanes)
+			{
+				if (l.size() < lane.size())
+				{
+					lane = l;
+				}
+			}
+			lane.add(progress);
+		}
+
+		for (List<List<Progress>> lanes : hubs.values())
+		{
+			for (List<Progress> lane : lanes)
+			{
+				this.workers.execute(() ->
+				{
+					for (Progress progress : lane)
+					{
+						if (this.closed)
+						{
+							break;
+						}
+						provisioning.run(progress);
+					}
+				});
+			}
+		}
+
+		if (provisioning.progress.isEmpty())
+		{
+			provisioning.future.complete(provisioning);
+		}
+		return provisioning;
+	}
+
+	/**
+	 * Stops the workers.  TICs that aren't finished are marked FAILED,
+	 * so every whenDone() future completes.  A TIC that was part way
+	 * through may have some of its settings written.
+	 */
+	@Override
+	public void close()
+	{
+		this.closed = true;
+		this.workers.shutdownNow();
+		for (Provisioning provisioning : this.active)
+		{
+			for (Progress progress : provisioning.progress)
+			{
+				progress.finish(State.FAILED, new InterruptedException("provisioner closed"));
+			}
+		}
+	}
+
+	/**
+	 * One run of provision() over a set of TICs
+	 */
+	static public final class Provisioning {
+		private final Map<TicSet,Long> profile;
+		private final List<Progress> progress = new ArrayList<>();
+		private final Consumer<Progress> listener;
+		private final AtomicInteger remaining;
+		private final CompletableFuture<Provisioning> future = new CompletableFuture<>();
+
+		/** Setting bytes the profile touches */
+		private final boolean touched[] = new boolean[SETTINGS_SIZE];
+
+		/**
+		 * Constructor
+		 * @param profile - The settings and values to apply
+		 * @param tics - The TICs to apply them to
+		 * @param listener - Progress listener (null for none)
+		 */
+		private Provisioning(Map<TicSet,Long> profile, Collection<TicInterface> tics, Consumer<Progress> listener)
+		{
+			this.profile = profile;
+			this.listener = listener;
+			for (TicInterface tic : tics)
+			{
+				this.progress.add(new Progress(tic, this));
+			}
+			this.remaining = new AtomicInteger(this.progress.size());
+			for (TicSet set : profile.keySet())
+			{
+				set.touch(this.touched);
+			}
+		}
+
+		/**
+		 * Gets the progress of every TIC
+		 * @return progress in the order the TICs were given
+		 */
+		public List<Progress> getProgress()
+		{
+			return Collections.unmodifiableList(this.progress);
+		}
+
+		/**
+		 * Gets the number of TICs finished, provisioned or failed
+		 * @return the count
+		 */
+		public int getFinished()
+		{
+			return this.progress.size() - this.remaining.get();
+		}
+
+		/**
+		 * Gets the TICs that failed
+		 * @return the cause by tic interface
+		 */
+		public Map<TicInterface,Throwable> getFailures()
+		{
+			Map<TicInterface,Throwable> failures = new LinkedHashMap<>();
+			for (Progress p : this.progress)
+			{
+				if (p.state == State.FAILED)
+				{
+					failures.put(p.tic, p.failure);
+				}
+			}
+			return failures;
+		}
+
+		/**
+		 * Gets a future that completes once every TIC is finished.  It
+		 * doesn't fail when TICs do; see getFailures().
+		 * @return future of this provisioning
+		 */
+		public CompletableFuture<Provisioning> whenDone()
+		{
+			return this.future.copy();
+		}
+
+		/**
+		 * Provisions one TIC
+		 * @param p - Its progress
+		 */
+		private void run(Progress p)
+		{
+			p.start = System.nanoTime();
+			try
+			{
+				byte image[] = new byte[SETTINGS_SIZE];
+				p.update(State.READING);
+				readBlocks(p.tic, image);
+
+				byte desired[] = image.clone();
+				for (Map.Entry<TicSet,Long> entry : this.profile.entrySet())
+				{
+					entry.getKey().pack(desired, entry.getValue());
+				}
+
+				List<UsbControlIrp> writes = new ArrayList<>();
+				for (int offset = 0; offset < SETTINGS_SIZE; offset++)
+				{
+					if (this.touched[offset] && desired[offset] != image[offset])
+					{
+						writes.add(new DefaultUsbControlIrp((byte) 0x40, TicCmd.SET_SETTING.code(),
+								(short) (desired[offset] & 0xFF), (short) offset));
+					}
+				}
+
+				p.bytesToWrite = writes.size();
+				p.update(State.WRITING);
+				for (int i = 0; i < writes.size(); i += WRITE_BATCH)
+				{
+					p.tic.SyncIrps(writes.subList(i, Math.min(writes.size(), i + WRITE_BATCH)));
+					p.bytesWritten = Math.min(writes.size(), i + WRITE_BATCH);
+					p.update(State.WRITING);
+				}
+
+				p.update(State.REINITIALIZING);
+				TicCmd.REINITIALIZE.Send(p.tic);
+				TicCmd.ENERGIZE.Send(p.tic);
+				p.tic.rememberSettings(this.profile);
+
+				p.update(State.VERIFYING);
+				byte actual[] = new byte[SETTINGS_SIZE];
+				readBlocks(p.tic, actual);
+				for (int offset = 0; offset < SETTINGS_SIZE; offset++)
+				{
+					if (this.touched[offset] && actual[offset] != desired[offset])
+					{
+						throw new IllegalStateException(String.format(
+								"setting byte 0x%02x reads back 0x%02x, expected 0x%02x",
+								offset, actual[offset] & 0xFF, desired[offset] & 0xFF));
+					}
+				}
+
+				p.finish(State.DONE, null);
+			}
+			catch (UsbException | RuntimeException e)
+			{
+				// Includes UsbDisconnectedException and verification failures
+				p.finish(State.FAILED, e);
+			}
+		}
+
+		/**
+		 * Reads the blocks of settings that hold touched bytes
+		 * @param tic - The tic interface
+		 * @param image - Settings bytes indexed by TIC offset
+		 * @throws UsbException - Missing Device
+		 * @throws UsbDisconnectedException - Missing Device
+		 */
+		private void readBlocks(TicInterface tic, byte image[]) throws UsbDisconnectedException, UsbException
+		{
+			for (int start = 0; start < SETTINGS_SIZE; start += BLOCK)
+			{
+				int end = start;
+				for (int offset = start; offset < start + BLOCK; offset++)
+				{
+					if (this.touched[offset])
+					{
+						end = offset + 1;
+					}
+				}
+				if (end == start)
+				{
+					continue;
+				}
+				byte bytes[] = TicCmd.GET_SETTING.Send(tic, (short) start, (short) (end - start));
+				System.arraycopy(bytes, 0, image, start, end - start);
+			}
+		}
+
+		/**
+		 * Counts a TIC as finished
+		 */
+		private void finished()
+		{
+			if (this.remaining.decrementAndGet() == 0)
+			{
+				this.future.complete(this);
+			}
+		}
+	}
+
+	/**
+	 * Progress of one TIC
+	 */
+	static public final class Progress {
+		private final TicInterface tic;
+		private final Provisioning owner;
+		private volatile State state = State.QUEUED;
+		private volatile int bytesToWrite = 0;
+		private volatile int bytesWritten = 0;
+		private volatile Throwable failure = null;
+		private volatile long start = 0;
+		private volatile long nanos = 0;
+
+		/** Set once DONE or FAILED; guarded by this */
+		private boolean finished = false;
+
+		/**
+		 * Constructor
+		 * @param tic - The tic interface
+		 * @param owner - The provisioning it is part of
+		 */
+		private Progress(TicInterface tic, Provisioning owner)
+		{
+			this.tic = tic;
+			this.owner = owner;
+		}
+
+		/**
+		 * Moves to a state and tells the listener
+		 * @param state - The new state
+		 */
+		private void update(State state)
+		{
+			synchronized (this)
+			{
+				// A worker still running after close() doesn't undo FAILED
+				if (this.finished)
+				{
+					return;
+				}
+				this.state = state;
+			}
+			notifyListener();
+		}
+
+		/**
+		 * Tells the listener about the current state
+		 */
+		private void notifyListener()
+		{
+			if (this.owner.listener != null)
+			{
+				this.owner.listener.accept(this);
+			}
+		}
+
+		/**
+		 * Finishes the TIC unless it is finished already
+		 * @param state - DONE or FAILED
+		 * @param failure - Why it failed (null if it didn't)
+		 */
+		private void finish(State state, Throwable failure)
+		{
+			synchronized (this)
+			{
+				if (this.finished)
+				{
+					return;
+				}
+				this.finished = true;
+				this.failure = failure;
+				this.nanos = (this.start == 0) ? 0 : System.nanoTime() - this.start;
+				this.state = state;
+			}
+			try
+			{
+				notifyListener();
+			}
+			finally
+			{
+				this.owner.finished();
+			}
+		}
+
+		/**
+		 * Gets the TIC
+		 * @return the tic interface
+		 */
+		public TicInterface getInterface()
+		{
+			return this.tic;
+		}
+
+		/**
+		 * Gets where the TIC is in provisioning
+		 * @return the state
+		 */
+		public State getState()
+		{
+			return this.state;
+		}
+
+		/**
+		 * Gets the number of setting bytes that differ from the profile
+		 * @return bytes to write (0 until READING is done)
+		 */
+		public int getBytesToWrite()
+		{
+			return this.bytesToWrite;
+		}
+
+		/**
+		 * Gets the number of setting bytes written so far
+		 * @return bytes written
+		 */
+		public int getBytesWritten()
+		{
+			return this.bytesWritten;
+		}
+
+		/**
+		 * Gets why the TIC failed
+		 * @return the cause (null unless FAILED)
+		 */
+		public Throwable getFailure()
+		{
+			return this.failure;
+		}
+
+		/**
+		 * Gets how long the TIC took to provision
+		 * @return nanoseconds from start to DONE or FAILED (0 until then)
+		 */
+		public long getNanos()
+		{
+			return this.nanos;
+		}
+	}
+}
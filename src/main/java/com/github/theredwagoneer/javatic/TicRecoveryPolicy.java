@@ -0,0 +1,101 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Says how a TicInterface recovers from a failed transfer before it
+ * gives up on the TIC and waits for a hotplug event.
+ *
+ * Recovery goes through three stages, each only tried if the one
+ * before it failed:
+ * <ol>
+ * <li>Retry the transfer on the same device handle, waiting with an
+ * exponential backoff between tries.  Skipped when the device is known
+ * to be disconnected.</li>
+ * <li>Re-probe the port the TIC was on.  If a TIC with the same serial
+ * number is there, use it.</li>
+ * <li>Rediscover the TIC with a full search of the bus.</li>
+ * </ol>
+ * When the handle changes in stage 2 or 3 the settings are applied
+ * again before the transfer is retried.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicRecoveryPolicy {
+
+	/** Policy used by new interfaces */
+	static public final TicRecoveryPolicy DEFAULT =
+			new TicRecoveryPolicy(3, 1, 20, TimeUnit.MILLISECONDS, true, true);
+
+	/** Policy that gives up on the first failure (the old behavior) */
+	static public final TicRecoveryPolicy NONE =
+			new TicRecoveryPolicy(0, 0, 0, TimeUnit.MILLISECONDS, false, false);
+
+	private final int retries;
+	private final long initialBackoffNanos;
+	private final long maxBackoffNanos;
+	private final boolean reprobe;
+	private final boolean rediscover;
+
+	/**
+	 * Constructor
+	 * @param retries - Number of retries on the same handle
+	 * @param initialBackoff - Wait before the first retry.  It doubles for each retry.
+	 * @param maxBackoff - Longest wait between retries
+	 * @param unit - Unit of the waits
+	 * @param reprobe - true to re-probe the port the TIC was on
+	 * @param rediscover - true to search the whole bus
+	 */
+	public TicRecoveryPolicy(int retries, long initialBackoff, long maxBackoff, TimeUnit unit,
+			boolean reprobe, boolean rediscover)
+	{
+		if (retries < 0 || initialBackoff < 0 || maxBackoff < initialBackoff)
+		{
+			throw new IllegalArgumentException("bad recovery policy");
+		}
+		this.retries = retries;
+		this.initialBackoffNanos = unit.toNanos(initialBackoff);
+		this.maxBackoffNanos = unit.toNanos(maxBackoff);
+		this.reprobe = reprobe;
+		this.rediscover = rediscover;
+	}
+
+	/**
+	 * Gets the number of retries on the same handle
+	 * @return the retry count
+	 */
+	public int getRetries()
+	{
+		return this.retries;
+	}
+
+	/**
+	 * Gets the wait before a retry
+	 * @param retry - Number of the retry (0 for the first)
+	 * @return the wait in nanoseconds
+	 */
+	public long getBackoffNanos(int retry)
+	{
+		long backoff = this.initialBackoffNanos << Math.min(retry, 30);
+		return (backoff < 0 || backoff > this.maxBackoffNanos) ? this.maxBackoffNanos : backoff;
+	}
+
+	/**
+	 * Checks if the port the TIC was on is re-probed
+	 * @return true if re-probing
+	 */
+	public boolean isReprobe()
+	{
+		return this.reprobe;
+	}
+
+	/**
+	 * Checks if the whole bus is searched
+	 * @return true if rediscovering
+	 */
+	public boolean isRediscover()
+	{
+		return this.rediscover;
+	}
+}
@@ -0,0 +1,202 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the recoveries of one TicInterface.  See TicRecoveryPolicy
+ * for the stages.  Each stage counts its attempts and the ones that got
+ * the TIC back.
+ *
+ * Time out of service runs from the first failed transfer until a
+ * transfer succeeds again.  Each outage is put down to the stage that
+ * ended it: a retry on the same handle, a re-probe, a rediscovery or a
+ * hotplug event.  A stage only gets the credit once a transfer has gone
+ * through, so a re-probe that finds the same broken handle again is
+ * not a recovery.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicRecoveryStats {
+
+	/**
+	 * The ways an outage can end
+	 */
+	static public enum Stage {
+		/** A retry on the same handle went through */
+		RETRY,
+		/** A re-probe of the TIC's port found it */
+		REPROBE,
+		/** A full search of the bus found it */
+		REDISCOVERY,
+		/** A hotplug event found it */
+		HOTPLUG;
+	}
+
+	final LongAdder retries = new LongAdder();
+	final LongAdder reprobes = new LongAdder();
+	final LongAdder rediscoveries = new LongAdder();
+	final LongAdder failures = new LongAdder();
+	final LongAdder outages = new LongAdder();
+	final LongAdder outOfServiceNanos = new LongAdder();
+
+	/** Outages ended by each stage, by Stage ordinal */
+	private final LongAdder stageOutages[] = new LongAdder[Stage.values().length];
+
+	/** Time out of service of the outages ended by each stage */
+	private final LongAdder stageNanos[] = new LongAdder[Stage.values().length];
+
+	/** Length of the last outage */
+	volatile long lastOutageNanos = 0;
+
+	/** Stage that ended the last outage */
+	volatile Stage lastOutageStage = null;
+
+	/**
+	 * Constructor
+	 */
+	TicRecoveryStats()
+	{
+		for (int i = 0; i < this.stageOutages.length; i++)
+		{
+			this.stageOutages[i] = new LongAdder();
+			this.stageNanos[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records the end of an outage
+	 * @param stage - The stage that ended it
+	 * @param nanos - Length of the outage
+	 */
+	void endOutage(Stage stage, long nanos)
+	{
+		this.outages.increment();
+		this.outOfServiceNanos.add(nanos);
+		this.stageOutages[stage.ordinal()].increment();
+		this.stageNanos[stage.ordinal()].add(nanos);
+		this.lastOutageNanos = nanos;
+		this.lastOutageStage = stage;
+	}
+
+	/**
+	 * Gets the number of retries on the same handle
+	 * @return the retry count
+	 */
+	public long getRetries()
+	{
+		return this.retries.sum();
+	}
+
+	/**
+	 * Gets the number of outages that ended with a retry on the
+	 * original handle
+	 * @return the recovery count
+	 */
+	public long getRetryRecoveries()
+	{
+		return getOutages(Stage.RETRY);
+	}
+
+	/**
+	 * Gets the number of re-probes of the TIC's port
+	 * @return the re-probe count
+	 */
+	public long getReprobes()
+	{
+		return this.reprobes.sum();
+	}
+
+	/**
+	 * Gets the number of outages a re-probe ended
+	 * @return the recovery count
+	 */
+	public long getReprobeRecoveries()
+	{
+		return getOutages(Stage.REPROBE);
+	}
+
+	/**
+	 * Gets the number of full searches of the bus
+	 * @return the rediscovery count
+	 */
+	public long getRediscoveries()
+	{
+		return this.rediscoveries.sum();
+	}
+
+	/**
+	 * Gets the number of outages a full search ended
+	 * @return the recovery count
+	 */
+	public long getRediscoveryRecoveries()
+	{
+		return getOutages(Stage.REDISCOVERY);
+	}
+
+	/**
+	 * Gets the number of times every stage failed and the TIC was dropped
+	 * until the next hotplug event
+	 * @return the failure count
+	 */
+	public long getFailures()
+	{
+		return this.failures.sum();
+	}
+
+	/**
+	 * Gets the number of outages that have ended
+	 * @return the outage count
+	 */
+	public long getOutages()
+	{
+		return this.outages.sum();
+	}
+
+	/**
+	 * Gets the total time out of service of the outages that have ended
+	 * @return the time in nanoseconds
+	 */
+	public long getOutOfServiceNanos()
+	{
+		return this.outOfServiceNanos.sum();
+	}
+
+	/**
+	 * Gets the number of outages a stage ended
+	 * @param stage - The stage
+	 * @return the outage count
+	 */
+	public long getOutages(Stage stage)
+	{
+		return this.stageOutages[stage.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the total time out of service of the outages a stage ended
+	 * @param stage - The stage
+	 * @return the time in nanoseconds
+	 */
+	public long getOutOfServiceNanos(Stage stage)
+	{
+		return this.stageNanos[stage.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the stage that ended the last outage
+	 * @return the stage (null if none)
+	 */
+	public Stage getLastOutageStage()
+	{
+		return this.lastOutageStage;
+	}
+
+	/**
+	 * Gets the length of the last outage that ended
+	 * @return the time in nanoseconds (0 if none)
+	 */
+	public long getLastOutageNanos()
+	{
+		return this.lastOutageNanos;
+	}
+}
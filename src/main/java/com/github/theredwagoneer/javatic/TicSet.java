@@ -170,6 +170,98 @@ public enum TicSet {
 		return retval;
 		
 	}
+	/**
+	 * Gets the worst case number of control transfers used by set().
+	 * Every byte is read back first and only written if it changed.
+	 * @return the number of transfers
+	 */
+	int cost()
+	{
+		switch(this.type)
+		{
+			case BOOL:
+				return 3;
+			case BIT_14:
+				return 6;
+			default:
+				return 2 * this.len;
+		}
+	}
+	
+	/**
+	 * Writes a value of the setting into an image of the settings the
+	 * way set() would write it to the TIC.  Bytes the setting shares
+	 * with others keep their other bits.
+	 * @param image - Settings bytes indexed by TIC offset
+	 * @param dataToSet - The value of the setting
+	 */
+	void pack(byte image[], long dataToSet)
+	{
+		int off = this.offset & 0xFF;
+		switch(this.type)
+		{
+			case SIGNED:
+			case UNSIGNED:
+				for (int i = 0; i < this.len; i++)
+				{
+					image[off + i] = (byte) (dataToSet >> (8 * i));
+				}
+				break;
+				
+			case BOOL:
+				assert (dataToSet == 1 || dataToSet == 0); // Only acceptable bools
+				if (dataToSet == 1)
+				{
+					image[off] |= (1 << aux);
+				}
+				else
+				{
+					image[off] &= ~(1 << aux);
+				}
+				break;
+				
+			case BIT_14:
+				int upper = this.aux & 0xFF;
+				image[off]   = (byte) ((image[off]   & ~0x7F) | (dataToSet & 0x7F));
+				image[upper] = (byte) ((image[upper] & ~0x7F) | ((dataToSet >> 7) & 0x7F));
+				break;
+				
+			default:
+				assert(false);
+				break;
+		}
+	}
+	
+	/**
+	 * Gets how the setting is packed
+	 * @return the packing type
+	 */
+	SetT type()
+	{
+		return this.type;
+	}
+	
+	/**
+	 * Marks the setting bytes the setting lives in
+	 * @param touched - Flags indexed by TIC offset
+	 */
+	void touch(boolean touched[])
+	{
+		int off = this.offset & 0xFF;
+		if (this.type == SetT.BIT_14)
+		{
+			touched[off] = true;
+			touched[this.aux & 0xFF] = true;
+		}
+		else
+		{
+			for (int i = 0; i < this.len; i++)
+			{
+				touched[off + i] = true;
+			}
+		}
+	}
+	
 	/**
 	 * Sets the parameter
 	 * Note: These are save to EEPROM which has like 100,000 writes, 
@@ -0,0 +1,274 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Host side copy of the TIC variables that only change when the host
+ * commands them, like TARGET_POSITION and MAX_SPEED.  Every successful
+ * command updates the copy, and TicVar.get() serves those variables
+ * from it instead of reading the TIC.
+ *
+ * The copy is cleared when the TIC is (re)connected or sent RESET or
+ * REINITIALIZE, since those put the variables back to the settings.
+ * A target is forgotten by any other motion command (halt, homing,
+ * energize, ...) since the TIC picks its own target after those.
+ *
+ * Every read of the TIC that covers a copied variable (TicVar.get()
+ * when the copy is due for verification, TicStatus.read()) checks the
+ * copy and takes the TIC's value if they differ.  A read that started
+ * before the copy was last sent or checked is ignored, since a command
+ * sent during the read makes its value stale.
+ *
+ * @author theredwagoneer
+ *
+ */
+final class TicShadow {
+
+	/** Returned by get() for a variable that has no copy */
+	static final long UNKNOWN = Long.MIN_VALUE;
+
+	/** Copied values by TicVar ordinal (UNKNOWN for none) */
+	private final long values[] = new long[TicVar.values().length];
+
+	/** System.nanoTime() each copy was last sent or checked */
+	private final long confirmed[] = new long[TicVar.values().length];
+
+	private volatile boolean enabled = true;
+
+	/** Age after which a copy is read from the TIC again (0 for never) */
+	private volatile long verifyNanos = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder mismatches = new LongAdder();
+
+	/**
+	 * Constructor
+	 */
+	TicShadow()
+	{
+		clear();
+	}
+
+	/**
+	 * Gets the variable a command sets
+	 * @param cmd - The command
+	 * @return the variable (null if it doesn't set a copied one)
+	 */
+	static TicVar shadowed(TicCmd cmd)
+	{
+		switch (cmd)
+		{
+			case SET_TARGET_POSITION:
+				return TicVar.TARGET_POSITION;
+			case SET_TARGET_VELOCITY:
+				return TicVar.TARGET_VELOCITY;
+			case SET_MAX_SPEED:
+				return TicVar.MAX_SPEED;
+			case SET_STARTING_SPEED:
+				return TicVar.STARTING_SPEED;
+			case SET_MAX_ACCEL:
+				return TicVar.MAX_ACCELERATION;
+			case SET_MAX_DECELERATION:
+				return TicVar.MAX_DECELERATION;
+			case SET_STEP_MODE:
+				return TicVar.STEP_MODE;
+			case SET_CURRENT_LIMIT:
+				return TicVar.CURRENT_LIMIT;
+			case SET_DECAY_MODE:
+				return TicVar.DECAY_MODE;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Turns the copy on or off.  Turning it off clears it.
+	 * @param enabled - true to serve copied variables locally
+	 */
+	void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+		clear();
+	}
+
+	/**
+	 * Sets how old a copy may get before a read goes to the TIC again
+	 * @param nanos - Maximum age (0 to never read a copied variable)
+	 */
+	void setVerifyNanos(long nanos)
+	{
+		this.verifyNanos = nanos;
+	}
+
+	/**
+	 * Updates the copy after a control write went through
+	 * @param bmRequestType - USB request type
+	 * @param bRequest - USB request
+	 * @param wValue - USB value
+	 * @param wIndex - USB index
+	 */
+	synchronized void sent(byte bmRequestType, byte bRequest, short wValue, short wIndex)
+	{
+		if (bmRequestType != (byte) 0x40 || !this.enabled)
+		{
+			return;
+		}
+
+		TicCmd cmd = TicCmd.fromCode(bRequest);
+		if (cmd == null)
+		{
+			return;
+		}
+
+		TicVar var = shadowed(cmd);
+		if (var != null)
+		{
+			store(var, var.fromData(cmd.data(wValue, wIndex)));
+
+			// Only one of the targets is in effect at a time
+			if (var == TicVar.TARGET_POSITION)
+			{
+				forget(TicVar.TARGET_VELOCITY);
+			}
+			else if (var == TicVar.TARGET_VELOCITY)
+			{
+				forget(TicVar.TARGET_POSITION);
+			}
+			return;
+		}
+
+		switch (cmd)
+		{
+			case RESET:
+			case REINITIALIZE:
+				clear();
+				break;
+			case RESET_COMMAND_TIMEOUT:
+			case SET_AGC_OPTION:
+			case CLEAR_DRIVER_ERROR:
+			case SET_SETTING:
+				// Doesn't touch the copied variables
+				break;
+			default:
+				forget(TicVar.TARGET_POSITION);
+				forget(TicVar.TARGET_VELOCITY);
+				break;
+		}
+	}
+
+	/**
+	 * Gets the copy of a variable
+	 * @param var - The variable
+	 * @return the value (UNKNOWN if there is no copy or it is due for verification)
+	 */
+	synchronized long get(TicVar var)
+	{
+		if (!serves(var))
+		{
+			return UNKNOWN;
+		}
+		this.hits.increment();
+		return this.values[var.ordinal()];
+	}
+
+	/**
+	 * Checks if get() would serve a variable from the copy right now
+	 * @param var - The variable
+	 * @return true if there is a copy that isn't due for verification
+	 */
+	synchronized boolean serves(TicVar var)
+	{
+		int i = var.ordinal();
+		if (!this.enabled || this.values[i] == UNKNOWN)
+		{
+			return false;
+		}
+		long verify = this.verifyNanos;
+		return verify <= 0 || System.nanoTime() - this.confirmed[i] <= verify;
+	}
+
+	/**
+	 * Checks the copy of a variable against a value read from the TIC
+	 * @param var - The variable
+	 * @param actual - The value read
+	 * @param readStart - System.nanoTime() before the read was sent
+	 */
+	synchronized void verify(TicVar var, long actual, long readStart)
+	{
+		int i = var.ordinal();
+		if (this.values[i] == UNKNOWN || this.confirmed[i] - readStart > 0)
+		{
+			return;
+		}
+		if (this.values[i] != actual)
+		{
+			this.mismatches.increment();
+		}
+		store(var, actual);
+	}
+
+	/**
+	 * Checks the copy against a status block read from the TIC
+	 * @param block - Raw variable block starting at offset 0
+	 * @param readStart - System.nanoTime() before the read was sent
+	 */
+	synchronized void verify(byte block[], long readStart)
+	{
+		for (TicVar var : TicVar.values())
+		{
+			if (this.values[var.ordinal()] != UNKNOWN && TicStatus.contains(var))
+			{
+				verify(var, var.decode(block, 0), readStart);
+			}
+		}
+	}
+
+	/**
+	 * Forgets every copy
+	 */
+	synchronized void clear()
+	{
+		for (int i = 0; i < this.values.length; i++)
+		{
+			this.values[i] = UNKNOWN;
+		}
+	}
+
+	/**
+	 * Gets the number of reads served from the copy
+	 * @return the hit count
+	 */
+	long getHits()
+	{
+		return this.hits.sum();
+	}
+
+	/**
+	 * Gets the number of times a copy differed from the TIC
+	 * @return the mismatch count
+	 */
+	long getMismatches()
+	{
+		return this.mismatches.sum();
+	}
+
+	/**
+	 * Stores a copy
+	 * @param var - The variable
+	 * @param value - Its value
+	 */
+	private void store(TicVar var, long value)
+	{
+		this.values[var.ordinal()] = value;
+		this.confirmed[var.ordinal()] = System.nanoTime();
+	}
+
+	/**
+	 * Forgets a copy
+	 * @param var - The variable
+	 */
+	private void forget(TicVar var)
+	{
+		this.values[var.ordinal()] = UNKNOWN;
+	}
+}
@@ -0,0 +1,353 @@
+package com.github.theredwagoneer.javatic;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbHostManager;
+import javax.usb.UsbHub;
+import javax.usb.UsbServices;
+
+import com.github.theredwagoneer.javatic.TicInterface.TicModel;
+
+/**
+ * Connects TicInterfaces in the background so that startup doesn't
+ * block the caller.
+ *
+ * The TicInterface constructors get the USB services, scan the bus and
+ * apply settings on the calling thread, one interface at a time.
+ * connect() returns the interfaces right away and does the same work on
+ * background threads.  The bus is scanned once for all the interfaces,
+ * the serial numbers of the TICs found are probed in parallel, and each
+ * interface is configured in parallel.  The future of each interface
+ * (TicInterface.whenReady()) completes when its TIC is configured.  An
+ * interface with no TIC on the bus keeps listening for hotplug events
+ * like one made with a constructor.
+ *
+ * The wall clock time of each phase is recorded.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicStartup {
+
+	/**
+	 * The phases of startup
+	 */
+	static public enum Phase {
+		/** Getting the USB services */
+		SERVICES,
+		/** Walking the bus for TIC descriptors */
+		SCAN,
+		/** Reading serial numbers of the TICs found */
+		PROBE,
+		/** Applying settings to the TICs */
+		CONFIGURE;
+	}
+
+	/**
+	 * Describes one TIC to connect to
+	 */
+	static public class Target {
+		private final TicModel model;
+		private final String serial;
+		private final Map<TicSet,Long> settings;
+
+		/**
+		 * Constructor
+		 * @param model - Model of TIC to use (null for any)
+		 * @param serial - Serial number of TIC to use (null for any)
+		 * @param settings - Settings to apply to the TIC (null for none)
+		 */
+		public Target(TicModel model, String serial, Map<TicSet,Long> settings)
+		{
+			this.model = model;
+			this.serial = serial;
+			this.settings = settings;
+		}
+	}
+
+	/** Interfaces being connected in the order of the targets */
+	private final List<TicInterface> interfaces;
+
+	/** Wall clock time of each phase in nanoseconds */
+	private final Map<Phase,Long> phaseNanos = Collections.synchronizedMap(new EnumMap<>(Phase.class));
+
+	/** Completes when every phase has run */
+	private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+	/**
+	 * Constructor
+	 * @param targets - The TICs to connect to
+	 */
+	private TicStartup(Target targets[])
+	{
+		List<TicInterface> list = new ArrayList<>();
+		for (Target target : targets)
+		{
+			list.add(new TicInterface(target.model, target.serial, target.settings));
+		}
+		this.interfaces = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Starts connecting to a TIC in the background
+	 * @param model - Model of TIC to use (null for any)
+	 * @param serial - Serial number of TIC to use (null for any)
+	 * @param settings - Settings to apply to the TIC (null for none)
+	 * @return the startup. getInterfaces().get(0) is the interface.
+	 */
+	static public TicStartup connect(TicModel model, String serial, Map<TicSet,Long> settings)
+	{
+		return connect(new Target(model, serial, settings));
+	}
+
+	/**
+	 * Starts connecting to a set of TICs in the background.  Each TIC
+	 * found is assigned to at most one target.  Targets with a serial
+	 * number get first pick, then targets with a model, then the rest.
+	 * @param targets - The TICs to connect to
+	 * @return the startup
+	 */
+	static public TicStartup connect(Target... targets)
+	{
+		TicStartup startup = new TicStartup(targets);
+
+		Thread thread = TicThreads.daemon("tic-startup").newThread(startup::run);
+		thread.start();
+
+		return startup;
+	}
+
+	/**
+	 * Gets the interfaces being connected
+	 * @return the interfaces in the order of the targets
+	 */
+	public List<TicInterface> getInterfaces()
+	{
+		return this.interfaces;
+	}
+
+	/**
+	 * Gets a future that completes when all the TICs are ready.  It
+	 * won't complete until missing TICs are plugged in.
+	 * @return the future
+	 */
+	public CompletableFuture<Void> allReady()
+	{
+		CompletableFuture<?> futures[] = new CompletableFuture<?>[this.interfaces.size()];
+		for (int i = 0; i < futures.length; i++)
+		{
+			futures[i] = this.interfaces.get(i).whenReady();
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	/**
+	 * Gets a future that completes when the startup has run every phase,
+	 * whether or not all the TICs were found.  Completing the returned
+	 * future doesn't affect the startup.
+	 * @return the future
+	 */
+	public CompletableFuture<Void> whenDone()
+	{
+		return this.done.copy();
+	}
+
+	/**
+	 * Gets the wall clock time spent in a phase
+	 * @param phase - The phase
+	 * @return the time in nanoseconds (0 if the phase hasn't finished)
+	 */
+	public long getPhaseNanos(Phase phase)
+	{
+		Long nanos = this.phaseNanos.get(phase);
+		return nanos == null ? 0 : nanos;
+	}
+
+	/**
+	 * Gets the wall clock time spent in all phases
+	 * @return the time in nanoseconds of every phase
+	 */
+	public Map<Phase,Long> getPhaseNanos()
+	{
+		synchronized (this.phaseNanos)
+		{
+			return new EnumMap<>(this.phaseNanos);
+		}
+	}
+
+	/**
+	 * Does the startup on the background thread
+	 */
+	private void run()
+	{
+		ExecutorService workers = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(this.interfaces.size(), Runtime.getRuntime().availableProcessors() * 2)),
+				TicThreads.daemon("tic-startup-worker"));
+
+		try
+		{
+			long start = System.nanoTime();
+			UsbServices services = UsbHostManager.getUsbServices();
+			UsbHub hub = services.getRootUsbHub();
+			start = endPhase(Phase.SERVICES, start);
+
+			List<UsbDevice> candidates = new ArrayList<>();
+			scan(hub, candidates);
+			start = endPhase(Phase.SCAN, start);
+
+			Map<UsbDevice,String> serials = probe(candidates, workers);
+			start = endPhase(Phase.PROBE, start);
+
+			Map<TicInterface,UsbDevice> assigned = assign(serials);
+			List<CompletableFuture<Void>> configs = new ArrayList<>();
+			for (TicInterface tic : this.interfaces)
+			{
+				UsbDevice device = assigned.get(tic);
+				configs.add(CompletableFuture.runAsync(() -> tic.attach(services, device), workers));
+			}
+			CompletableFuture.allOf(configs.toArray(new CompletableFuture<?>[0])).join();
+			endPhase(Phase.CONFIGURE, start);
+
+			this.done.complete(null);
+		}
+		catch (UsbException | RuntimeException e)
+		{
+			// Can't get the services, so none of the TICs can ever be found
+			for (TicInterface tic : this.interfaces)
+			{
+				tic.failReady(e);
+			}
+			this.done.completeExceptionally(e);
+		}
+		finally
+		{
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Records the time of a phase
+	 * @param phase - The phase that ended
+	 * @param start - System.nanoTime() at the start of the phase
+	 * @return System.nanoTime() at the end of the phase
+	 */
+	private long endPhase(Phase phase, long start)
+	{
+		long end = System.nanoTime();
+		this.phaseNanos.put(phase, end - start);
+		return end;
+	}
+
+	/**
+	 * Recursively collects the devices with a TIC descriptor.  Descriptors
+	 * are cached by the services so this causes no USB traffic.
+	 * @param hub - Hub to search
+	 * @param candidates - List to add the TICs to
+	 */
+	@SuppressWarnings("unchecked")
+	static private void scan(UsbHub hub, List<UsbDevice> candidates)
+	{
+		for (UsbDevice device : (List<UsbDevice>) hub.getAttachedUsbDevices())
+		{
+			if (device.isUsbHub())
+			{
+				scan((UsbHub) device, candidates);
+			}
+			else if (TicInterface.isTic(device.getUsbDeviceDescriptor(), TicInterface.TIC_VENDOR_ID, 0))
+			{
+				candidates.add(device);
+			}
+		}
+	}
+
+	/**
+	 * Reads the serial numbers of the TICs in parallel
+	 * @param candidates - The TICs
+	 * @param workers - Threads to read with
+	 * @return serial number of each TIC that answered, in scan order
+	 */
+	static private Map<UsbDevice,String> probe(List<UsbDevice> candidates, ExecutorService workers)
+	{
+		List<CompletableFuture<String>> reads = new ArrayList<>();
+		for (UsbDevice device : candidates)
+		{
+			reads.add(CompletableFuture.supplyAsync(() ->
+			{
+				try
+				{
+					return device.getSerialNumberString();
+				}
+				catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e)
+				{
+					return null;
+				}
+			}, workers));
+		}
+
+		Map<UsbDevice,String> serials = new LinkedHashMap<>();
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			String serial = reads.get(i).join();
+			if (serial != null)
+			{
+				serials.put(candidates.get(i), serial);
+			}
+		}
+		return serials;
+	}
+
+	/**
+	 * Assigns the TICs found to the interfaces.  The most specific
+	 * targets pick first so a wildcard can't take a TIC that a
+	 * specific serial number needs.
+	 * @param serials - Serial number of each TIC found
+	 * @return the TIC for each interface that got one
+	 */
+	private Map<TicInterface,UsbDevice> assign(Map<UsbDevice,String> serials)
+	{
+		List<TicInterface> order = new ArrayList<>(this.interfaces);
+		order.sort((a, b) -> Integer.compare(specificity(b), specificity(a)));
+
+		Map<UsbDevice,String> free = new LinkedHashMap<>(serials);
+		Map<TicInterface,UsbDevice> assigned = new LinkedHashMap<>();
+		for (TicInterface tic : order)
+		{
+			for (Map.Entry<UsbDevice,String> entry : free.entrySet())
+			{
+				if (tic.matches(entry.getKey().getUsbDeviceDescriptor(), entry.getValue()))
+				{
+					assigned.put(tic, entry.getKey());
+					free.remove(entry.getKey());
+					break;
+				}
+			}
+		}
+		return assigned;
+	}
+
+	/**
+	 * Ranks how specific an interface's search is
+	 * @param tic - The interface
+	 * @return 2 for a serial number, 1 for a model, 0 for any
+	 */
+	static private int specificity(TicInterface tic)
+	{
+		if (tic.getSearchSerial() != null)
+		{
+			return 2;
+		}
+		return tic.getSearchModel() != 0 ? 1 : 0;
+	}
+}
@@ -0,0 +1,175 @@
+package com.github.theredwagoneer.javatic;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * A snapshot of the TIC status variables taken with a single 
+ * GET_VARIABLE transfer.  Every variable in the snapshot was read
+ * at the same instant, unlike separate TicVar.get calls.
+ * 
+ * @author theredwagoneer
+ *
+ */
+public final class TicStatus {
+	/** 
+	 * Length of the variable block read for a snapshot.  Covers every 
+	 * variable from OPERATION_STATE through AGC_FREQUENCY_LIMIT.
+	 * LAST_HP_DRIVER_ERRORS lives outside of it.
+	 */
+	static final int BLOCK_LENGTH = 0x5A;
+
+	/** OPERATION_STATE value when the motor is energized and under control */
+	static public final int OPERATION_STATE_NORMAL = 10;
+
+	/** PLANNING_MODE value when the TIC is going to a target position */
+	static public final int PLANNING_MODE_POSITION = 1;
+
+	/** PLANNING_MODE value when the TIC is going to a target velocity */
+	static public final int PLANNING_MODE_VELOCITY = 2;
+
+	/** MISC_FLAGS_1 bit set while the position is uncertain, like before homing */
+	static public final int MISC_FLAGS_1_POSITION_UNCERTAIN = 1 << 1;
+
+	/** MISC_FLAGS_1 bit set while the TIC is homing */
+	static public final int MISC_FLAGS_1_HOMING_ACTIVE = 1 << 4;
+	
+	/** The interface the snapshot was read from */
+	private final TicInterface source;
+	
+	/** System.nanoTime() when the read completed */
+	private final long nanoTime;
+	
+	/** Raw variable block starting at offset 0 */
+	private final byte block[];
+	
+	/**
+	 * Constructor
+	 * @param source - The interface the block was read from
+	 * @param nanoTime - Time the block was read
+	 * @param block - Raw variable block starting at offset 0
+	 */
+	TicStatus(TicInterface source, long nanoTime, byte block[])
+	{
+		this.source = source;
+		this.nanoTime = nanoTime;
+		this.block = block;
+	}
+	
+	/**
+	 * Reads a snapshot of all status variables from the TIC
+	 * @param tic - The tic interface to use
+	 * @return the snapshot
+	 * @throws UsbException - Missing Device
+	 * @throws UsbDisconnectedException - Missing Device
+	 */
+	public static TicStatus read(TicInterface tic) throws UsbDisconnectedException, UsbException
+	{
+		long readStart = System.nanoTime();
+		byte bytes[] = TicCmd.GET_VARIABLE.Send(tic, (short) 0, (short) BLOCK_LENGTH);
+		
+		tic.shadow().verify(bytes, readStart);
+		
+		return new TicStatus(tic, System.nanoTime(), bytes);
+	}
+	
+	/**
+	 * Checks if a variable is part of the snapshot
+	 * @param var - The variable to check
+	 * @return true if get() can be called for it
+	 */
+	public static boolean contains(TicVar var)
+	{
+		return var.offset() + var.length() <= BLOCK_LENGTH;
+	}
+	
+	/**
+	 * Gets the value of a variable from the snapshot
+	 * @param var - The variable to get
+	 * @return long representation of the value of the variable
+	 * @throws IllegalArgumentException - if the variable isn't in the snapshot
+	 */
+	public long get(TicVar var)
+	{
+		if (!contains(var))
+		{
+			throw new IllegalArgumentException(var + " is not part of the status block");
+		}
+		
+		return var.decode(this.block, 0);
+	}
+	
+	/**
+	 * Checks if the motor is moving or about to move.  That is the TIC is
+	 * in the normal operation state and either has a velocity or has
+	 * a target it hasn't reached yet.
+	 * @return true if the motor is in motion
+	 */
+	public boolean isMoving()
+	{
+		return isMoving(get(TicVar.OPERATION_STATE), get(TicVar.CURRENT_VELOCITY), get(TicVar.PLANNING_MODE),
+				get(TicVar.TARGET_POSITION), get(TicVar.CURRENT_POSITION), get(TicVar.TARGET_VELOCITY));
+	}
+
+	/**
+	 * isMoving() from the raw variable values
+	 * @param operationState - OPERATION_STATE
+	 * @param velocity - CURRENT_VELOCITY
+	 * @param planningMode - PLANNING_MODE
+	 * @param targetPosition - TARGET_POSITION
+	 * @param position - CURRENT_POSITION
+	 * @param targetVelocity - TARGET_VELOCITY
+	 * @return true if the motor is in motion
+	 */
+	static boolean isMoving(long operationState, long velocity, long planningMode,
+			long targetPosition, long position, long targetVelocity)
+	{
+		if (operationState != OPERATION_STATE_NORMAL)
+		{
+			return false;
+		}
+
+		if (velocity != 0)
+		{
+			return true;
+		}
+
+		switch ((int) planningMode)
+		{
+			case PLANNING_MODE_POSITION:
+				return targetPosition != position;
+			case PLANNING_MODE_VELOCITY:
+				return targetVelocity != 0;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Copies the raw variable block
+	 * @param dest - Array to copy into
+	 * @param offset - Where to start in dest
+	 */
+	void copyBlock(byte dest[], int offset)
+	{
+		System.arraycopy(this.block, 0, dest, offset, BLOCK_LENGTH);
+	}
+
+	/**
+	 * Gets the interface the snapshot was read from
+	 * @return the tic interface (null for snapshots read from a TicStatusBoard)
+	 */
+	public TicInterface getSource()
+	{
+		return this.source;
+	}
+	
+	/**
+	 * Gets the time the snapshot was read
+	 * @return System.nanoTime() at the end of the read
+	 */
+	public long getNanoTime()
+	{
+		return this.nanoTime;
+	}
+}
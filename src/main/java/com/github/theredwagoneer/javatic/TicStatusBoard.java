@@ -0,0 +1,500 @@
+package com.github.theredwagoneer.javatic;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.usb.UsbException;
+
+/**
+ * A memory mapped file that shares the latest status of a set of TICs
+ * between JVMs on the same machine.  TicDaemon owns the TICs and
+ * writes the board; any number of other JVMs open it and read.
+ *
+ * Each TIC has a slot holding its name and its latest raw variable
+ * block.  Slots are guarded by a sequence lock: the writer makes the
+ * sequence odd while it writes and even when it is done, and a reader
+ * retries if the sequence was odd or changed while it copied.  Reading
+ * is plain memory access with no system calls and no USB traffic.
+ *
+ * Each slot also has a mailbox for commands.  send() puts a TicCmd
+ * write in the mailbox under a file lock (so writers in different JVMs
+ * take turns) and waits for the daemon to acknowledge it.
+ *
+ * File layout (all offsets in bytes, 8 byte aligned):
+ * <pre>
+ * header  0  magic, version, slot count, slot size
+ *        16  daemon heartbeat (System.currentTimeMillis())
+ * slot    0  sequence
+ *         8  sample time (System.nanoTime() of the daemon)
+ *        16  sample time (System.currentTimeMillis())
+ *        24  name length, name (up to 32 bytes UTF-8)
+ *        64  variable block
+ *       160  command sequence, ack sequence, command, data, result
+ * </pre>
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicStatusBoard implements AutoCloseable {
+
+	/** Result of a command the daemon sent */
+	static public final int RESULT_OK = 0;
+
+	/** Result of a command the TIC didn't take (missing device) */
+	static public final int RESULT_USB_ERROR = 1;
+
+	/** Result of a command that isn't a TicCmd write */
+	static public final int RESULT_BAD_COMMAND = 2;
+
+	/** Longest name of a slot in bytes */
+	static public final int MAX_NAME = 32;
+
+	static private final int MAGIC = 0x54494342; // "TICB"
+	static private final int VERSION = 1;
+
+	/** Tries of a read before deciding the writer is gone */
+	static private final int MAX_SPINS = 1 << 20;
+
+	static private final int HEADER_SIZE = 64;
+	static private final int SLOT_SIZE = 256;
+
+	static private final int H_MAGIC = 0;
+	static private final int H_VERSION = 4;
+	static private final int H_SLOTS = 8;
+	static private final int H_SLOT_SIZE = 12;
+	static private final int H_HEARTBEAT = 16;
+
+	static private final int S_SEQ = 0;
+	static private final int S_NANOS = 8;
+	static private final int S_MILLIS = 16;
+	static private final int S_NAME_LEN = 24;
+	static private final int S_NAME = 32;
+	static private final int S_BLOCK = 64;
+	static private final int S_CMD_SEQ = 160;
+	static private final int S_ACK_SEQ = 168;
+	static private final int S_CMD = 176;
+	static private final int S_DATA = 180;
+	static private final int S_RESULT = 184;
+
+	/** Atomic access to longs in the mapped file */
+	static private final VarHandle LONGS =
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/** Atomic access to ints in the mapped file */
+	static private final VarHandle INTS =
+			MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buf;
+	private final int slots;
+
+	/** Monitor of each slot's mailbox, for the threads of this JVM */
+	private final Object mailboxes[];
+
+	/**
+	 * Constructor
+	 * @param channel - The open file
+	 * @param buf - The mapped file
+	 * @param slots - Number of slots
+	 */
+	private TicStatusBoard(FileChannel channel, MappedByteBuffer buf, int slots)
+	{
+		this.channel = channel;
+		this.buf = buf;
+		this.slots = slots;
+		this.mailboxes = new Object[slots];
+		for (int i = 0; i < slots; i++)
+		{
+			this.mailboxes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Creates a new board, clearing any board that was in the file.
+	 * Used by the daemon.  The file is reused rather than truncated so
+	 * readers that still have it mapped don't fault.
+	 * @param path - The file
+	 * @param names - Name of the TIC in each slot
+	 * @return the board
+	 * @throws IOException - The file couldn't be made
+	 */
+	static public TicStatusBoard create(Path path, String... names) throws IOException
+	{
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + (long) SLOT_SIZE * names.length);
+
+		// Invalidate the old board first so readers don't trust a half written one
+		INTS.setRelease(buf, H_MAGIC, 0);
+		for (int i = 0; i < buf.capacity(); i++)
+		{
+			buf.put(i, (byte) 0);
+		}
+
+		TicStatusBoard board = new TicStatusBoard(channel, buf, names.length);
+		for (int i = 0; i < names.length; i++)
+		{
+			byte name[] = names[i].getBytes(StandardCharsets.UTF_8);
+			if (name.length > MAX_NAME)
+			{
+				board.close();
+				throw new IllegalArgumentException("name too long: " + names[i]);
+			}
+			int base = board.slotBase(i);
+			INTS.set(buf, base + S_NAME_LEN, name.length);
+			for (int j = 0; j < name.length; j++)
+			{
+				buf.put(base + S_NAME + j, name[j]);
+			}
+		}
+		INTS.set(buf, H_SLOTS, names.length);
+		INTS.set(buf, H_SLOT_SIZE, SLOT_SIZE);
+		INTS.set(buf, H_VERSION, VERSION);
+		INTS.setRelease(buf, H_MAGIC, MAGIC);
+
+		return board;
+	}
+
+	/**
+	 * Opens a board made by a daemon
+	 * @param path - The file
+	 * @return the board
+	 * @throws IOException - The file couldn't be opened or isn't a board
+	 */
+	static public TicStatusBoard open(Path path) throws IOException
+	{
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+		if ((int) INTS.getAcquire(header, H_MAGIC) != MAGIC
+				|| (int) INTS.get(header, H_VERSION) != VERSION
+				|| (int) INTS.get(header, H_SLOT_SIZE) != SLOT_SIZE)
+		{
+			channel.close();
+			throw new IOException(path + " is not a TIC status board");
+		}
+
+		int slots = (int) INTS.get(header, H_SLOTS);
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + (long) SLOT_SIZE * slots);
+
+		return new TicStatusBoard(channel, buf, slots);
+	}
+
+	/**
+	 * Closes the file.  The mapping stays valid until it is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.channel.close();
+	}
+
+	/**
+	 * Gets the number of slots
+	 * @return the slot count
+	 */
+	public int getNumberOfSlots()
+	{
+		return this.slots;
+	}
+
+	/**
+	 * Gets the name of the TIC in a slot
+	 * @param slot - The slot
+	 * @return the name
+	 */
+	public String getName(int slot)
+	{
+		int base = slotBase(slot);
+		byte name[] = new byte[(int) INTS.get(this.buf, base + S_NAME_LEN)];
+		for (int j = 0; j < name.length; j++)
+		{
+			name[j] = this.buf.get(base + S_NAME + j);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Finds the slot of a TIC
+	 * @param name - Name of the TIC
+	 * @return the slot or -1 if there is none
+	 */
+	public int find(String name)
+	{
+		for (int i = 0; i < this.slots; i++)
+		{
+			if (getName(i).equals(name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the time of the daemon's last heartbeat.  A reader can use
+	 * it to tell if the daemon is still running.
+	 * @return System.currentTimeMillis() of the heartbeat (0 if none)
+	 */
+	public long getHeartbeatMillis()
+	{
+		return (long) LONGS.getAcquire(this.buf, H_HEARTBEAT);
+	}
+
+	/**
+	 * Reads a consistent copy of the latest variable block of a slot
+	 * without allocating.
+	 * @param slot - The slot
+	 * @param block - Array of at least TicStatus.BLOCK_LENGTH bytes to copy into
+	 * @return System.nanoTime() of the daemon when the block was read
+	 * 			from the TIC (0 if the slot has never been written or 
+	 * 			the daemon died in the middle of writing it)
+	 */
+	public long read(int slot, byte block[])
+	{
+		int base = slotBase(slot);
+
+		for (int spins = 0; spins < MAX_SPINS; spins++)
+		{
+			long before = (long) LONGS.getAcquire(this.buf, base + S_SEQ);
+			if ((before & 1) != 0)
+			{
+				Thread.onSpinWait();
+				continue;
+			}
+
+			long nanos = (long) LONGS.get(this.buf, base + S_NANOS);
+			for (int j = 0; j < TicStatus.BLOCK_LENGTH; j++)
+			{
+				block[j] = this.buf.get(base + S_BLOCK + j);
+			}
+
+			VarHandle.loadLoadFence();
+			if ((long) LONGS.get(this.buf, base + S_SEQ) == before)
+			{
+				return before == 0 ? 0 : nanos;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Reads a consistent snapshot of a slot
+	 * @param slot - The slot
+	 * @return the status (null if the slot has never been written).
+	 * 			Its source is null.
+	 */
+	public TicStatus read(int slot)
+	{
+		byte block[] = new byte[TicStatus.BLOCK_LENGTH];
+		long nanos = read(slot, block);
+		return nanos == 0 ? null : new TicStatus(null, nanos, block);
+	}
+
+	/**
+	 * Gets the wall clock time of the latest sample in a slot.  Not
+	 * guarded by the sequence lock, so only use it to judge staleness.
+	 * @param slot - The slot
+	 * @return System.currentTimeMillis() of the sample (0 if none)
+	 */
+	public long getSampleMillis(int slot)
+	{
+		return (long) LONGS.getAcquire(this.buf, slotBase(slot) + S_MILLIS);
+	}
+
+	/**
+	 * Sends a QUICK command to a TIC through the daemon and waits for it
+	 * to be sent.
+	 * @param slot - Slot of the TIC
+	 * @param cmd - The command
+	 * @param timeout - Longest time to wait
+	 * @param unit - Unit of timeout
+	 * @throws UsbException - The daemon couldn't send it or didn't answer
+	 * @throws IOException - The mailbox couldn't be locked
+	 */
+	public void send(int slot, TicCmd cmd, long timeout, TimeUnit unit) throws UsbException, IOException
+	{
+		send(slot, cmd, 0, timeout, unit);
+	}
+
+	/**
+	 * Sends a command with data to a TIC through the daemon and waits for
+	 * it to be sent.
+	 * @param slot - Slot of the TIC
+	 * @param cmd - The command (QUICK, BIT_7 or BIT_32)
+	 * @param data - The data to include with the command
+	 * @param timeout - Longest time to wait
+	 * @param unit - Unit of timeout
+	 * @throws UsbException - The daemon couldn't send it or didn't answer
+	 * @throws IOException - The mailbox couldn't be locked
+	 */
+	@SuppressWarnings("try")
+	public void send(int slot, TicCmd cmd, int data, long timeout, TimeUnit unit) throws UsbException, IOException
+	{
+		if (!cmd.isWrite())
+		{
+			throw new IllegalArgumentException(cmd + " is not a write command");
+		}
+
+		int base = slotBase(slot);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int result;
+
+		// FileLocks are per process, so threads of this JVM take turns
+		// first.  Slots don't overlap, so each one only waits for its own.
+		synchronized (this.mailboxes[slot])
+		{
+			try (FileLock lock = this.channel.lock(base + S_CMD_SEQ, SLOT_SIZE - S_CMD_SEQ, false))
+			{
+				long seq = (long) LONGS.getAcquire(this.buf, base + S_CMD_SEQ);
+				if (!awaitAck(base, seq, deadline))
+				{
+					throw new UsbException("TIC daemon is not answering");
+				}
+
+				INTS.set(this.buf, base + S_CMD, (int) cmd.code());
+				INTS.set(this.buf, base + S_DATA, data);
+				LONGS.setRelease(this.buf, base + S_CMD_SEQ, seq + 1);
+
+				if (!awaitAck(base, seq + 1, deadline))
+				{
+					throw new UsbException("TIC daemon is not answering");
+				}
+				result = (int) INTS.get(this.buf, base + S_RESULT);
+			}
+		}
+
+		if (result == RESULT_BAD_COMMAND)
+		{
+			throw new IllegalArgumentException("TIC daemon rejected " + cmd);
+		}
+		if (result != RESULT_OK)
+		{
+			throw new UsbException("No Tic Found");
+		}
+	}
+
+	/**
+	 * Waits for the daemon to acknowledge a command
+	 * @param base - Base of the slot
+	 * @param seq - Command sequence to wait for
+	 * @param deadline - System.nanoTime() to give up at
+	 * @return true if acknowledged
+	 */
+	private boolean awaitAck(int base, long seq, long deadline)
+	{
+		while ((long) LONGS.getAcquire(this.buf, base + S_ACK_SEQ) != seq)
+		{
+			if (System.nanoTime() - deadline > 0)
+			{
+				return false;
+			}
+			LockSupport.parkNanos(20_000);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the latest status of a slot.  Only one thread may write a
+	 * given slot.
+	 * @param slot - The slot
+	 * @param status - The status
+	 * @param scratch - Array of at least TicStatus.BLOCK_LENGTH bytes
+	 */
+	void publish(int slot, TicStatus status, byte scratch[])
+	{
+		int base = slotBase(slot);
+		long seq = (long) LONGS.get(this.buf, base + S_SEQ);
+
+		LONGS.setOpaque(this.buf, base + S_SEQ, seq + 1);
+		VarHandle.storeStoreFence();
+
+		status.copyBlock(scratch, 0);
+		for (int j = 0; j < TicStatus.BLOCK_LENGTH; j++)
+		{
+			this.buf.put(base + S_BLOCK + j, scratch[j]);
+		}
+		LONGS.set(this.buf, base + S_NANOS, status.getNanoTime());
+		LONGS.set(this.buf, base + S_MILLIS, System.currentTimeMillis());
+
+		LONGS.setRelease(this.buf, base + S_SEQ, seq + 2);
+	}
+
+	/**
+	 * Updates the daemon heartbeat
+	 */
+	void heartbeat()
+	{
+		LONGS.setRelease(this.buf, H_HEARTBEAT, System.currentTimeMillis());
+	}
+
+	/**
+	 * Checks a slot's mailbox for a command that hasn't been acknowledged
+	 * @param slot - The slot
+	 * @return true if there is one
+	 */
+	boolean hasCommand(int slot)
+	{
+		int base = slotBase(slot);
+		return (long) LONGS.getAcquire(this.buf, base + S_CMD_SEQ)
+				!= (long) LONGS.get(this.buf, base + S_ACK_SEQ);
+	}
+
+	/**
+	 * Gets the command code in a slot's mailbox
+	 * @param slot - The slot
+	 * @return the USB request code of the command
+	 */
+	byte getCommand(int slot)
+	{
+		return (byte) (int) INTS.get(this.buf, slotBase(slot) + S_CMD);
+	}
+
+	/**
+	 * Gets the command data in a slot's mailbox
+	 * @param slot - The slot
+	 * @return the data
+	 */
+	int getCommandData(int slot)
+	{
+		return (int) INTS.get(this.buf, slotBase(slot) + S_DATA);
+	}
+
+	/**
+	 * Acknowledges the command in a slot's mailbox
+	 * @param slot - The slot
+	 * @param result - RESULT_OK, RESULT_USB_ERROR or RESULT_BAD_COMMAND
+	 */
+	void acknowledge(int slot, int result)
+	{
+		int base = slotBase(slot);
+		INTS.set(this.buf, base + S_RESULT, result);
+		LONGS.setRelease(this.buf, base + S_ACK_SEQ, (long) LONGS.getAcquire(this.buf, base + S_CMD_SEQ));
+	}
+
+	/**
+	 * Gets the offset of a slot in the file
+	 * @param slot - The slot
+	 * @return the offset
+	 */
+	private int slotBase(int slot)
+	{
+		if (slot < 0 || slot >= this.slots)
+		{
+			throw new IndexOutOfBoundsException("slot " + slot);
+		}
+		return HEADER_SIZE + SLOT_SIZE * slot;
+	}
+}
@@ -0,0 +1,538 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * Publishes TicStatus snapshots for one or more TICs as a
+ * java.util.concurrent.Flow.Publisher.
+ *
+ * Each device has exactly one sampling loop no matter how many
+ * subscribers are attached, so adding subscribers never adds USB
+ * traffic.  The loops only run while there is at least one subscriber.
+ *
+ * Each subscriber has its own queue and chooses how to handle samples
+ * that arrive faster than it requests them (see Overflow).  The
+ * sampling loops never wait on a subscriber, so a slow subscriber
+ * can't stall the others.
+ *
+ * Failed reads (missing TIC) are skipped rather than signaled as
+ * errors since the TIC may come back through hotplugging.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicStatusPublisher implements Flow.Publisher<TicStatus>, AutoCloseable {
+
+	/**
+	 * How a subscriber handles samples it hasn't requested yet
+	 */
+	static public enum Overflow {
+		/** Discard samples that arrive while there is no demand */
+		DROP,
+		/** Keep only the most recent undelivered sample */
+		LATEST,
+		/** Queue samples up to a capacity, then discard the oldest */
+		BUFFER;
+	}
+
+	/** Default queue capacity for BUFFER subscribers */
+	static public final int DEFAULT_BUFFER = 256;
+
+	/** Time between samples of each device */
+	private final long periodNanos;
+
+	/** Runs the sampling loops */
+	private final ScheduledThreadPoolExecutor sampler;
+
+	/** Delivers samples to the subscribers */
+	private final ExecutorService delivery;
+
+	/** Devices being published and their sampling loops (null when stopped) */
+	private final Map<TicInterface, AtomicReference<ScheduledFuture<?>>> devices = new ConcurrentHashMap<>();
+
+	/** Currently attached subscriptions */
+	private final List<StatusSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Guards adding and removing subscriptions together with starting and
+	 * stopping the sampling loops, so the loops run exactly while there
+	 * are subscribers.
+	 */
+	private final Object subscriptionLock = new Object();
+
+	/** Set once the publisher is closed */
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param period - Time between samples of each device
+	 * @param unit - Unit of period
+	 */
+	public TicStatusPublisher(long period, TimeUnit unit)
+	{
+		this.periodNanos = unit.toNanos(period);
+		this.sampler = new ScheduledThreadPoolExecutor(1, TicThreads.daemon("tic-status-sampler"));
+		this.sampler.setRemoveOnCancelPolicy(true);
+		this.delivery = Executors.newCachedThreadPool(TicThreads.daemon("tic-status-delivery"));
+	}
+
+	/**
+	 * Constructor: Publish a list of TICs
+	 * @param period - Time between samples of each device
+	 * @param unit - Unit of period
+	 * @param tics - The tic interfaces to publish
+	 */
+	public TicStatusPublisher(long period, TimeUnit unit, TicInterface... tics)
+	{
+		this(period, unit);
+		for (TicInterface tic : tics)
+		{
+			addDevice(tic);
+		}
+	}
+
+	/**
+	 * Adds a TIC to the publisher.
+	 * @param tic - The tic interface to publish
+	 */
+	public void addDevice(TicInterface tic)
+	{
+		if (this.devices.putIfAbsent(tic, new AtomicReference<>()) == null)
+		{
+			// One thread per device so a stalled transfer only delays its own TIC
+			this.sampler.setCorePoolSize(Math.max(1, this.devices.size()));
+			synchronized (this.subscriptionLock)
+			{
+				if (!this.subscriptions.isEmpty())
+				{
+					startSampling(tic);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a TIC from the publisher.
+	 * @param tic - The tic interface to stop publishing
+	 */
+	public void removeDevice(TicInterface tic)
+	{
+		AtomicReference<ScheduledFuture<?>> loop = this.devices.remove(tic);
+		if (loop != null)
+		{
+			stopSampling(loop);
+		}
+	}
+
+	/**
+	 * Subscribes with the LATEST overflow policy
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super TicStatus> subscriber)
+	{
+		subscribe(subscriber, Overflow.LATEST, 1);
+	}
+
+	/**
+	 * Subscribes with a specific overflow policy
+	 * @param subscriber - The subscriber
+	 * @param overflow - How to handle samples that haven't been requested
+	 * @param capacity - Queue capacity for BUFFER (ignored otherwise)
+	 */
+	public void subscribe(Flow.Subscriber<? super TicStatus> subscriber, Overflow overflow, int capacity)
+	{
+		if (subscriber == null)
+		{
+			throw new NullPointerException("subscriber");
+		}
+		if (overflow == Overflow.BUFFER && capacity < 1)
+		{
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+
+		StatusSubscription sub = new StatusSubscription(subscriber, overflow, capacity);
+
+		subscriber.onSubscribe(sub);
+
+		synchronized (this.subscriptionLock)
+		{
+			if (!this.closed)
+			{
+				if (!sub.cancelled)
+				{
+					this.subscriptions.add(sub);
+					if (this.subscriptions.size() == 1)
+					{
+						for (TicInterface tic : this.devices.keySet())
+						{
+							startSampling(tic);
+						}
+					}
+				}
+				return;
+			}
+		}
+
+		// Closed: the delivery executor is gone, so complete right here
+		if (!sub.cancelled)
+		{
+			sub.cancelled = true;
+			subscriber.onComplete();
+		}
+	}
+
+	/**
+	 * Gets the number of attached subscribers
+	 * @return the subscriber count
+	 */
+	public int getNumberOfSubscribers()
+	{
+		return this.subscriptions.size();
+	}
+
+	/**
+	 * Stops sampling and completes all subscribers.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (this.subscriptionLock)
+		{
+			this.closed = true;
+			this.sampler.shutdownNow();
+			for (StatusSubscription sub : this.subscriptions)
+			{
+				sub.complete();
+			}
+			this.subscriptions.clear();
+		}
+		this.delivery.shutdown();
+	}
+
+	/**
+	 * Starts the sampling loop of a device if it isn't running
+	 * @param tic - The tic interface to sample
+	 */
+	private void startSampling(TicInterface tic)
+	{
+		AtomicReference<ScheduledFuture<?>> loop = this.devices.get(tic);
+		if (loop == null || this.closed)
+		{
+			return;
+		}
+
+		synchronized (loop)
+		{
+			if (loop.get() == null)
+			{
+				loop.set(this.sampler.scheduleAtFixedRate(
+						() -> sample(tic), 0, this.periodNanos, TimeUnit.NANOSECONDS));
+			}
+		}
+	}
+
+	/**
+	 * Stops a sampling loop if it is running
+	 * @param loop - The loop to stop
+	 */
+	private void stopSampling(AtomicReference<ScheduledFuture<?>> loop)
+	{
+		synchronized (loop)
+		{
+			ScheduledFuture<?> future = loop.getAndSet(null);
+			if (future != null)
+			{
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Called when a subscription is cancelled.  Stops the sampling
+	 * loops when the last subscriber leaves.
+	 * @param sub - The cancelled subscription
+	 */
+	private void unsubscribe(StatusSubscription sub)
+	{
+		synchronized (this.subscriptionLock)
+		{
+			if (this.subscriptions.remove(sub) && this.subscriptions.isEmpty())
+			{
+				for (AtomicReference<ScheduledFuture<?>> loop : this.devices.values())
+				{
+					stopSampling(loop);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One pass of a sampling loop.
+	 * @param tic - The tic interface to sample
+	 */
+	private void sample(TicInterface tic)
+	{
+		TicStatus status;
+
+		try
+		{
+			status = TicStatus.read(tic);
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			// Skip this sample.  The Tic will get found when it is back.
+			return;
+		}
+
+		for (StatusSubscription sub : this.subscriptions)
+		{
+			sub.offer(status);
+		}
+	}
+
+	/**
+	 * A subscriber's queue and demand.  Samples are handed over by the
+	 * sampling loops and delivered on the delivery executor, one
+	 * drain at a time per subscriber.
+	 */
+	public final class StatusSubscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super TicStatus> subscriber;
+		private final Overflow overflow;
+		private final int capacity;
+
+		/** Queued samples for BUFFER */
+		private final ConcurrentLinkedQueue<TicStatus> queue = new ConcurrentLinkedQueue<>();
+
+		/** Number of samples in queue */
+		private final AtomicInteger queued = new AtomicInteger();
+
+		/** Pending sample for DROP and LATEST */
+		private final AtomicReference<TicStatus> latest = new AtomicReference<>();
+
+		/** Outstanding demand */
+		private final AtomicLong requested = new AtomicLong();
+
+		/** Work in progress counter that serializes the drain */
+		private final AtomicInteger wip = new AtomicInteger();
+
+		/** Number of samples discarded by the overflow policy */
+		private final LongAdder dropped = new LongAdder();
+
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+
+		/**
+		 * Constructor
+		 * @param subscriber - The subscriber
+		 * @param overflow - How to handle samples that haven't been requested
+		 * @param capacity - Queue capacity for BUFFER
+		 */
+		private StatusSubscription(Flow.Subscriber<? super TicStatus> subscriber, Overflow overflow, int capacity)
+		{
+			this.subscriber = subscriber;
+			this.overflow = overflow;
+			this.capacity = capacity;
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				cancel();
+				this.subscriber.onError(new IllegalArgumentException("request must be positive"));
+				return;
+			}
+
+			long current, next;
+			do
+			{
+				current = this.requested.get();
+				next = current + n;
+				if (next < 0)
+				{
+					next = Long.MAX_VALUE;
+				}
+			}
+			while (!this.requested.compareAndSet(current, next));
+
+			drain();
+		}
+
+		@Override
+		public void cancel()
+		{
+			if (!this.cancelled)
+			{
+				this.cancelled = true;
+				unsubscribe(this);
+			}
+		}
+
+		/**
+		 * Gets the number of samples discarded for this subscriber
+		 * @return the drop count
+		 */
+		public long getDropped()
+		{
+			return this.dropped.sum();
+		}
+
+		/**
+		 * Hands a sample to the subscriber's queue without blocking.
+		 * @param status - The sample
+		 */
+		private void offer(TicStatus status)
+		{
+			switch (this.overflow)
+			{
+				case DROP:
+				case LATEST:
+					if (this.overflow == Overflow.DROP && this.requested.get() == 0)
+					{
+						this.dropped.increment();
+						return;
+					}
+					// The newest sample replaces any undelivered one
+					if (this.latest.getAndSet(status) != null)
+					{
+						this.dropped.increment();
+					}
+					break;
+				case BUFFER:
+					this.queue.offer(status);
+					if (this.queued.incrementAndGet() > this.capacity)
+					{
+						if (this.queue.poll() != null)
+						{
+							this.queued.decrementAndGet();
+							this.dropped.increment();
+						}
+					}
+					break;
+				default:
+					assert(false);
+					break;
+			}
+
+			drain();
+		}
+
+		/**
+		 * Signals completion once the pending samples are delivered.
+		 */
+		private void complete()
+		{
+			this.done = true;
+			drain();
+		}
+
+		/**
+		 * Gets the next pending sample
+		 * @return the sample or null if there is none
+		 */
+		private TicStatus poll()
+		{
+			if (this.overflow == Overflow.BUFFER)
+			{
+				TicStatus status = this.queue.poll();
+				if (status != null)
+				{
+					this.queued.decrementAndGet();
+				}
+				return status;
+			}
+			return this.latest.getAndSet(null);
+		}
+
+		/**
+		 * Schedules a drain unless one is already running.
+		 */
+		private void drain()
+		{
+			if (this.wip.getAndIncrement() == 0)
+			{
+				try
+				{
+					delivery.execute(this);
+				}
+				catch (RejectedExecutionException e)
+				{
+					// Publisher is closed.  Nothing more to deliver, but
+					// the subscriber still has to hear about it.
+					this.wip.set(0);
+					if (this.done && !this.cancelled)
+					{
+						this.cancelled = true;
+						this.subscriber.onComplete();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Drain loop.  Delivers as many samples as have been requested.
+		 */
+		@Override
+		public void run()
+		{
+			int missed = 1;
+
+			do
+			{
+				while (!this.cancelled && this.requested.get() > 0)
+				{
+					TicStatus status = poll();
+					if (status == null)
+					{
+						break;
+					}
+
+					if (this.requested.get() != Long.MAX_VALUE)
+					{
+						this.requested.decrementAndGet();
+					}
+
+					try
+					{
+						this.subscriber.onNext(status);
+					}
+					catch (RuntimeException e)
+					{
+						cancel();
+						this.subscriber.onError(e);
+						return;
+					}
+				}
+
+				if (this.done && !this.cancelled)
+				{
+					this.cancelled = true;
+					this.subscriber.onComplete();
+					return;
+				}
+
+				missed = this.wip.addAndGet(-missed);
+			}
+			while (missed != 0);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helper for the background threads used by the sampling and
+ * monitoring classes.  All of them are daemon threads so an
+ * application can exit without shutting the library down.
+ * 
+ * @author theredwagoneer
+ *
+ */
+final class TicThreads {
+	
+	/**
+	 * Not instantiable
+	 */
+	private TicThreads()
+	{
+	}
+	
+	/**
+	 * Creates a thread factory making named daemon threads
+	 * @param prefix - Name prefix for the threads (a count is appended)
+	 * @return the thread factory
+	 */
+	static ThreadFactory daemon(String prefix)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		
+		return (Runnable r) -> 
+		{
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -75,7 +75,9 @@ public enum TicVar {
 	/**
 	 * Gets the value of a variable and puts it in a long.  Long is
 	 * used for everything because it is guaranteed to hold unsigned
-	 * 32 bit numbers
+	 * 32 bit numbers.  Variables the host commands, like TARGET_POSITION,
+	 * come from the interface's copy of what was last sent when it has
+	 * one (see TicInterface.setShadowing()).
 	 * @param  tic - The tic interface to use
 	 * @return long representation of the value of the variable. 
 	 * @throws UsbException - Missing Device
@@ -83,29 +85,85 @@ public enum TicVar {
 	 */
 	public long get(TicInterface tic) throws UsbDisconnectedException, UsbException 
 	{
+		long value = tic.shadow().get(this);
+		if (value != TicShadow.UNKNOWN)
+		{
+			return value;
+		}
+		
+		long readStart = System.nanoTime();
 		byte bytes[] = TicCmd.GET_VARIABLE.Send(tic, this.code, this.len);
 		
+		value = decode(bytes, this.offset());
+		tic.shadow().verify(this, value, readStart);
+		return value;
+	}
+	
+	/**
+	 * Gets the offset of this variable in the TIC variable block
+	 * @return the offset (0 - 255)
+	 */
+	int offset()
+	{
+		return this.code & 0xFF;
+	}
+	
+	/**
+	 * Gets the byte length of this variable
+	 * @return the length in bytes
+	 */
+	int length()
+	{
+		return this.len;
+	}
+	
+	/**
+	 * Converts the data of a command that sets this variable to the
+	 * value get() would return for it
+	 * @param data - The data sent with the command
+	 * @return long representation of the value of the variable.
+	 */
+	long fromData(int data)
+	{
+		if (this.signed == true)
+		{
+			return data;
+		}
+		return data & (0xFFFFFFFFL >>> (32 - 8 * this.len));
+	}
+	
+	/**
+	 * Decodes this variable out of a block of variable data read
+	 * from the TIC.  This lets several variables be pulled out of
+	 * a single GET_VARIABLE transfer.
+	 * @param block - Bytes read from the TIC variable block
+	 * @param blockOffset - TIC offset of the first byte in the block
+	 * @return long representation of the value of the variable.
+	 */
+	long decode(byte block[], int blockOffset)
+	{
+		int start = this.offset() - blockOffset;
+		
+		assert (start >= 0 && start + this.len <= block.length);
+		
 		if (this.signed == true)
 		{
 			assert(this.len == 4); // 4 bytes id the only signed length supported as of 7/6/2021
-			ByteBuffer buff = ByteBuffer.wrap(bytes);
+			ByteBuffer buff = ByteBuffer.wrap(block, start, this.len);
 			buff.order(ByteOrder.LITTLE_ENDIAN);
 			
 			return (long) buff.getInt();
 		}
 		else
 		{
-			byte paddedBytes[] = new byte[8];
-			for( int i = 0; i<len; ++i)
+			long retval = 0;
+			for( int i = this.len - 1; i >= 0; --i)
 			{
-				paddedBytes[i] = bytes[i];
+				retval <<= 8;
+				retval |= (block[start + i] & 0xFF);
 			}
 			
-			ByteBuffer buff = ByteBuffer.wrap(paddedBytes);
-			buff.order(ByteOrder.LITTLE_ENDIAN);
-			
-			return (long) buff.getInt();
+			return retval;
 		}
-		
 	}
 }
@@ -0,0 +1,520 @@
+package com.github.theredwagoneer.javatic;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbHub;
+import javax.usb.UsbPort;
+import javax.usb.UsbServices;
+import javax.usb.util.DefaultUsbControlIrp;
+
+/**
+ * A simulated TIC behind the javax.usb interfaces, so a TicInterface
+ * runs its real transfer, recovery and settings code against it.
+ *
+ * The TIC answers GET_VARIABLE, GET_SETTING and SET_SETTING from memory
+ * and moves CURRENT_POSITION towards the target position on every
+ * transfer.  GO_HOME sets the homing active flag for a number of
+ * transfers while the TIC is energized.  Each transfer takes a random time in a latency range and
+ * can fail with a transient error.  detach() and attach() simulate
+ * hotplugging: a detached TIC fails every transfer on its old handle and
+ * comes back on the same port with a new handle.  The time from a
+ * detach to the next transfer that goes through is recorded as the
+ * TIC's time out of service.
+ *
+ * @author theredwagoneer
+ *
+ */
+class FakeTicDevice {
+
+	static private final byte GET_VARIABLE = (byte) 0xA1;
+	static private final byte GET_VARIABLE_AND_CLEAR = (byte) 0xA2;
+	static private final byte GET_SETTING = (byte) 0xA8;
+	static private final byte SET_SETTING = (byte) 0x13;
+	static private final byte SET_TARGET_POSITION = (byte) 0xE0;
+	static private final byte SET_TARGET_VELOCITY = (byte) 0xE3;
+	static private final byte HALT_AND_SET_POSITION = (byte) 0xEC;
+	static private final byte HALT_AND_HOLD = (byte) 0x89;
+	static private final byte DEENERGIZE = (byte) 0x86;
+	static private final byte ENERGIZE = (byte) 0x85;
+	static private final byte GO_HOME = (byte) 0x97;
+
+	/** Microsteps the motor moves per transfer */
+	static private final int STEP_PER_TRANSFER = 50;
+
+	/** Transfers a homing takes */
+	static private final int HOMING_TRANSFERS = 10;
+
+	private final String serial;
+	private final int productId;
+	private final long minLatencyNanos;
+	private final long maxLatencyNanos;
+	private final double glitchRate;
+
+	/** Raw variable block */
+	private final byte variables[] = new byte[256];
+
+	/** Raw settings */
+	private final byte settings[] = new byte[256];
+
+	/** Transfers left in the homing in progress (0 for none) */
+	private int homingLeft = 0;
+
+	/** Whether the TIC ignores commands */
+	private volatile boolean stuck = false;
+
+	/** Handle the TIC is reachable through (null while detached) */
+	private volatile UsbDevice handle;
+
+	/** Port the TIC is plugged into */
+	private final UsbPort port;
+
+	/** System.nanoTime() of the last detach (0 once a transfer went through) */
+	private final AtomicLong detachedAt = new AtomicLong();
+
+	/** Time from each detach to the first transfer that went through */
+	private final LatencyHistogram reconnects;
+
+	/** Transfers the TIC answered */
+	private final AtomicLong transfers = new AtomicLong();
+
+	/** Transient errors injected */
+	private final AtomicLong glitches = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param serial - Serial number of the simulated TIC
+	 * @param model - Model of the simulated TIC
+	 * @param minLatencyNanos - Shortest transfer
+	 * @param maxLatencyNanos - Longest transfer
+	 * @param glitchRate - Chance of a transient error per transfer
+	 * @param reconnects - Histogram to record reconnect times in
+	 */
+	FakeTicDevice(String serial, TicInterface.TicModel model, long minLatencyNanos, long maxLatencyNanos,
+			double glitchRate, LatencyHistogram reconnects)
+	{
+		this.serial = serial;
+		this.productId = model.code;
+		this.minLatencyNanos = minLatencyNanos;
+		this.maxLatencyNanos = maxLatencyNanos;
+		this.glitchRate = glitchRate;
+		this.reconnects = reconnects;
+
+		UsbHub hub = proxy(UsbHub.class, (p, m, a) ->
+		{
+			switch (m.getName())
+			{
+				case "getUsbPort":
+					return getPort();
+				case "isUsbHub":
+				case "isRootUsbHub":
+					return true;
+				default:
+					return defaultValue(p, m, a);
+			}
+		});
+		this.port = proxy(UsbPort.class, (p, m, a) ->
+		{
+			switch (m.getName())
+			{
+				case "getUsbHub":
+					return hub;
+				case "getPortNumber":
+					return (byte) 1;
+				case "getUsbDevice":
+					return this.handle;
+				case "isUsbDeviceAttached":
+					return this.handle != null;
+				default:
+					return defaultValue(p, m, a);
+			}
+		});
+
+		this.variables[TicVar.OPERATION_STATE.offset()] = (byte) TicStatus.OPERATION_STATE_NORMAL;
+		this.variables[TicVar.PLANNING_MODE.offset()] = (byte) TicStatus.PLANNING_MODE_POSITION;
+		this.handle = newHandle();
+	}
+
+	/**
+	 * Gets the handle the TIC is reachable through
+	 * @return the handle (null while detached)
+	 */
+	UsbDevice getHandle()
+	{
+		return this.handle;
+	}
+
+	/**
+	 * Gets the port the TIC is plugged into
+	 * @return the port
+	 */
+	UsbPort getPort()
+	{
+		return this.port;
+	}
+
+	/**
+	 * Unplugs the TIC
+	 */
+	void detach()
+	{
+		this.detachedAt.set(System.nanoTime());
+		this.handle = null;
+	}
+
+	/**
+	 * Plugs the TIC back in with a new handle
+	 * @return the new handle
+	 */
+	UsbDevice attach()
+	{
+		UsbDevice device = newHandle();
+		this.handle = device;
+		return device;
+	}
+
+	/**
+	 * Makes the TIC accept commands without carrying them out, like a
+	 * controller that has locked up.  Reads still work and the motor
+	 * keeps moving.
+	 * @param stuck - true to ignore commands
+	 */
+	void setStuck(boolean stuck)
+	{
+		this.stuck = stuck;
+	}
+
+	/**
+	 * Gets the settings the TIC holds
+	 * @return a copy of the raw settings
+	 */
+	synchronized byte[] getSettings()
+	{
+		return this.settings.clone();
+	}
+
+	/**
+	 * Replaces the settings the TIC holds
+	 * @param settings - Raw settings, 256 bytes
+	 */
+	synchronized void setSettings(byte settings[])
+	{
+		System.arraycopy(settings, 0, this.settings, 0, this.settings.length);
+	}
+
+	/**
+	 * Gets the number of transfers the TIC answered
+	 * @return the transfer count
+	 */
+	long getTransfers()
+	{
+		return this.transfers.get();
+	}
+
+	/**
+	 * Gets the number of transient errors injected
+	 * @return the glitch count
+	 */
+	long getGlitches()
+	{
+		return this.glitches.get();
+	}
+
+	/**
+	 * Makes USB services that only accept listeners, for TicInterface.attach()
+	 * @return the services
+	 */
+	static UsbServices services()
+	{
+		return proxy(UsbServices.class, FakeTicDevice::defaultValue);
+	}
+
+	/**
+	 * Makes a new handle for the TIC
+	 * @return the handle
+	 */
+	private UsbDevice newHandle()
+	{
+		UsbDeviceDescriptor desc = proxy(UsbDeviceDescriptor.class, (p, m, a) ->
+		{
+			switch (m.getName())
+			{
+				case "idVendor":
+					return (short) TicInterface.TIC_VENDOR_ID;
+				case "idProduct":
+					return (short) this.productId;
+				default:
+					return defaultValue(p, m, a);
+			}
+		});
+
+		UsbDevice device[] = new UsbDevice[1];
+		device[0] = proxy(UsbDevice.class, (p, m, a) ->
+		{
+			switch (m.getName())
+			{
+				case "createUsbControlIrp":
+					return new DefaultUsbControlIrp((Byte) a[0], (Byte) a[1], (Short) a[2], (Short) a[3]);
+				case "syncSubmit":
+					if (a[0] instanceof List)
+					{
+						for (Object irp : (List<?>) a[0])
+						{
+							submit(device[0], (UsbControlIrp) irp);
+						}
+					}
+					else
+					{
+						submit(device[0], (UsbControlIrp) a[0]);
+					}
+					return null;
+				case "getParentUsbPort":
+					checkAttached(device[0]);
+					return this.port;
+				case "getUsbDeviceDescriptor":
+					return desc;
+				case "getSerialNumberString":
+					checkAttached(device[0]);
+					return this.serial;
+				case "isUsbHub":
+					return false;
+				default:
+					return defaultValue(p, m, a);
+			}
+		});
+		return device[0];
+	}
+
+	/**
+	 * Throws if a handle is stale
+	 * @param device - The handle used
+	 */
+	private void checkAttached(UsbDevice device)
+	{
+		if (this.handle != device)
+		{
+			throw new UsbDisconnectedException();
+		}
+	}
+
+	/**
+	 * Answers one control transfer
+	 * @param device - The handle it was submitted on
+	 * @param irp - The transfer
+	 * @throws UsbException - Injected transient error
+	 */
+	private void submit(UsbDevice device, UsbControlIrp irp) throws UsbException
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		LockSupport.parkNanos(this.minLatencyNanos +
+				(long) (random.nextDouble() * (this.maxLatencyNanos - this.minLatencyNanos)));
+
+		checkAttached(device);
+		if (random.nextDouble() < this.glitchRate)
+		{
+			this.glitches.incrementAndGet();
+			throw new UsbException("Simulated transfer glitch");
+		}
+
+		synchronized (this)
+		{
+			step();
+			execute(irp);
+		}
+
+		this.transfers.incrementAndGet();
+		long detached = this.detachedAt.getAndSet(0);
+		if (detached != 0)
+		{
+			this.reconnects.record(System.nanoTime() - detached);
+		}
+		irp.setActualLength(irp.getLength());
+		irp.complete();
+	}
+
+	/**
+	 * Carries out a command
+	 * @param irp - The transfer
+	 */
+	private void execute(UsbControlIrp irp)
+	{
+		int value = irp.wValue() & 0xFFFF;
+		int index = irp.wIndex() & 0xFFFF;
+		int data32 = value | (index << 16);
+
+		if (this.stuck && irp.bmRequestType() == (byte) 0x40)
+		{
+			return;
+		}
+
+		switch (irp.bRequest())
+		{
+			case GET_VARIABLE:
+			case GET_VARIABLE_AND_CLEAR:
+				System.arraycopy(this.variables, index, irp.getData(), 0, irp.getLength());
+				break;
+			case GET_SETTING:
+				System.arraycopy(this.settings, index, irp.getData(), 0, irp.getLength());
+				break;
+			case SET_SETTING:
+				this.settings[index] = (byte) value;
+				break;
+			case SET_TARGET_POSITION:
+				putInt(TicVar.TARGET_POSITION, data32);
+				this.variables[TicVar.PLANNING_MODE.offset()] = (byte) TicStatus.PLANNING_MODE_POSITION;
+				break;
+			case SET_TARGET_VELOCITY:
+				putInt(TicVar.TARGET_VELOCITY, data32);
+				this.variables[TicVar.PLANNING_MODE.offset()] = (byte) TicStatus.PLANNING_MODE_VELOCITY;
+				break;
+			case HALT_AND_SET_POSITION:
+				putInt(TicVar.CURRENT_POSITION, data32);
+				putInt(TicVar.TARGET_POSITION, data32);
+				putInt(TicVar.CURRENT_VELOCITY, 0);
+				break;
+			case HALT_AND_HOLD:
+				putInt(TicVar.TARGET_POSITION, getInt(TicVar.CURRENT_POSITION));
+				putInt(TicVar.CURRENT_VELOCITY, 0);
+				break;
+			case DEENERGIZE:
+				this.variables[TicVar.OPERATION_STATE.offset()] = 2;
+				break;
+			case ENERGIZE:
+				this.variables[TicVar.OPERATION_STATE.offset()] = (byte) TicStatus.OPERATION_STATE_NORMAL;
+				break;
+			case GO_HOME:
+				this.variables[TicVar.MISC_FLAGS_1.offset()] |= TicStatus.MISC_FLAGS_1_HOMING_ACTIVE;
+				this.homingLeft = HOMING_TRANSFERS;
+				break;
+			default:
+				// Other commands are accepted and ignored
+				break;
+		}
+	}
+
+	/**
+	 * Moves the simulated motor towards its target or home
+	 */
+	private void step()
+	{
+		if (this.variables[TicVar.OPERATION_STATE.offset()] != TicStatus.OPERATION_STATE_NORMAL)
+		{
+			return;
+		}
+
+		if (this.homingLeft > 0)
+		{
+			if (--this.homingLeft == 0)
+			{
+				this.variables[TicVar.MISC_FLAGS_1.offset()] &=
+						~(TicStatus.MISC_FLAGS_1_HOMING_ACTIVE | TicStatus.MISC_FLAGS_1_POSITION_UNCERTAIN);
+				putInt(TicVar.CURRENT_POSITION, 0);
+				putInt(TicVar.TARGET_POSITION, 0);
+			}
+			return;
+		}
+
+		if (this.variables[TicVar.PLANNING_MODE.offset()] != TicStatus.PLANNING_MODE_POSITION)
+		{
+			return;
+		}
+
+		int current = getInt(TicVar.CURRENT_POSITION);
+		int distance = getInt(TicVar.TARGET_POSITION) - current;
+		int move = Math.max(-STEP_PER_TRANSFER, Math.min(STEP_PER_TRANSFER, distance));
+
+		putInt(TicVar.CURRENT_POSITION, current + move);
+		putInt(TicVar.ENCODER_POSITION, current + move);
+		putInt(TicVar.CURRENT_VELOCITY, move);
+	}
+
+	/**
+	 * Reads a 4 byte variable
+	 * @param var - The variable
+	 * @return its value
+	 */
+	private int getInt(TicVar var)
+	{
+		return (int) var.decode(this.variables, 0);
+	}
+
+	/**
+	 * Writes a 4 byte variable
+	 * @param var - The variable
+	 * @param value - The value
+	 */
+	private void putInt(TicVar var, int value)
+	{
+		int offset = var.offset();
+		for (int i = 0; i < 4; i++)
+		{
+			this.variables[offset + i] = (byte) (value >> (8 * i));
+		}
+	}
+
+	/**
+	 * Makes a proxy for one of the javax.usb interfaces
+	 * @param type - The interface
+	 * @param handler - Answers the calls
+	 * @return the proxy
+	 */
+	static private <T> T proxy(Class<T> type, InvocationHandler handler)
+	{
+		return type.cast(Proxy.newProxyInstance(FakeTicDevice.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Answers the calls a proxy doesn't simulate
+	 * @param proxy - The proxy
+	 * @param method - The method called
+	 * @param args - The arguments
+	 * @return identity based Object methods, otherwise a zero value
+	 */
+	static private Object defaultValue(Object proxy, Method method, Object args[])
+	{
+		switch (method.getName())
+		{
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Fake" + method.getDeclaringClass().getSimpleName();
+			default:
+				break;
+		}
+
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class)
+		{
+			return false;
+		}
+		if (type == byte.class)
+		{
+			return (byte) 0;
+		}
+		if (type == short.class)
+		{
+			return (short) 0;
+		}
+		if (type == int.class)
+		{
+			return 0;
+		}
+		if (type == long.class)
+		{
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,148 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the TicFleetTable queries, with the table idle and with a thread
+ * updating rows the whole time like a sampler would.
+ *
+ * Each measurement is a filter on OPERATION_STATE plus a mean of
+ * CURRENT_VELOCITY, the kind of pair a dashboard asks for on every
+ * refresh.
+ *
+ * Run it with gradle:
+ * <pre>
+ * gradle fleetBenchmark -PbenchmarkArgs="500 5"
+ * </pre>
+ * The arguments are the number of rows and the seconds per measurement.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class FleetTableBenchmark {
+
+	/** Queries between checks of the clock */
+	static private final int BATCH = 1000;
+
+	private final TicFleetTable table;
+	private final TicInterface tics[];
+	private final int result[];
+	private final long runNanos;
+
+	private volatile boolean updating = false;
+
+	/** Keeps the JIT from dropping the queries */
+	private double sink = 0;
+
+	/**
+	 * Constructor
+	 * @param rows - Number of TICs in the table
+	 * @param seconds - Length of each measurement
+	 */
+	FleetTableBenchmark(int rows, long seconds)
+	{
+		this.table = new TicFleetTable(rows);
+		this.tics = new TicInterface[rows];
+		this.result = new int[rows];
+		this.runNanos = TimeUnit.SECONDS.toNanos(seconds);
+
+		for (int i = 0; i < rows; i++)
+		{
+			this.tics[i] = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+			this.table.register(this.tics[i]);
+			update(i);
+		}
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param args - Rows and seconds per measurement (500 and 5 if not given)
+	 * @throws InterruptedException - Interrupted while running
+	 */
+	public static void main(String args[]) throws InterruptedException
+	{
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		new FleetTableBenchmark(rows, seconds).run();
+	}
+
+	/**
+	 * Warms up and prints both measurements
+	 * @throws InterruptedException - Interrupted while running
+	 */
+	void run() throws InterruptedException
+	{
+		System.out.printf("TicFleetTable: %d rows, filter + mean%n", this.tics.length);
+		measure();
+
+		System.out.printf("  idle           %.0f ns/query%n", measure());
+
+		this.updating = true;
+		Thread updater = new Thread(this::updates, "benchmark-updates");
+		updater.start();
+		double busy = measure();
+		this.updating = false;
+		updater.join();
+		System.out.printf("  updating       %.0f ns/query%n", busy);
+
+		if (this.sink == 42)
+		{
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Runs the queries for the length of a measurement
+	 * @return nanoseconds per query
+	 */
+	private double measure()
+	{
+		long start = System.nanoTime();
+		long end = start + this.runNanos;
+		long queries = 0;
+		long now;
+		do
+		{
+			for (int i = 0; i < BATCH; i++)
+			{
+				int n = this.table.filter(TicVar.OPERATION_STATE,
+						state -> state != TicStatus.OPERATION_STATE_NORMAL, this.result);
+				this.sink += n + this.table.mean(TicVar.CURRENT_VELOCITY);
+			}
+			queries += BATCH;
+			now = System.nanoTime();
+		}
+		while (now - end < 0);
+		return (double) (now - start) / queries;
+	}
+
+	/**
+	 * Updates random rows until the measurement ends
+	 */
+	private void updates()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (this.updating)
+		{
+			update(random.nextInt(this.tics.length));
+		}
+	}
+
+	/**
+	 * Updates a row with a random velocity and operation state
+	 * @param row - The row
+	 */
+	private void update(int row)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		byte block[] = new byte[TicStatus.BLOCK_LENGTH];
+		block[TicVar.OPERATION_STATE.offset()] = (byte) (random.nextInt(100) == 0 ? 2 : TicStatus.OPERATION_STATE_NORMAL);
+		int velocity = random.nextInt(-1_000_000, 1_000_000);
+		for (int i = 0; i < 4; i++)
+		{
+			block[TicVar.CURRENT_VELOCITY.offset() + i] = (byte) (velocity >> (8 * i));
+		}
+		this.table.update(row, new TicStatus(this.tics[row], System.nanoTime(), block));
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.theredwagoneer.javatic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free log-linear histogram of durations with microsecond
+ * resolution below 128us and about 1.5% resolution above.
+ *
+ * @author theredwagoneer
+ *
+ */
+class LatencyHistogram {
+
+	static private final int LINEAR = 128;
+	static private final int SUB_BITS = 6;
+	static private final int SUB = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(LINEAR + SUB * 57);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * Records a duration
+	 * @param nanos - The duration
+	 */
+	void record(long nanos)
+	{
+		this.counts.incrementAndGet(index(Math.max(0, nanos) / 1000));
+		this.total.increment();
+		this.sumNanos.add(nanos);
+	}
+
+	/**
+	 * Gets the number of durations recorded
+	 * @return the count
+	 */
+	long getCount()
+	{
+		return this.total.sum();
+	}
+
+	/**
+	 * Gets the mean duration
+	 * @return the mean in microseconds (0 if empty)
+	 */
+	double getMeanMicros()
+	{
+		long n = this.total.sum();
+		return n == 0 ? 0 : this.sumNanos.sum() / 1000.0 / n;
+	}
+
+	/**
+	 * Gets a percentile of the durations
+	 * @param percentile - The percentile (0 to 100)
+	 * @return the upper bound of the bucket it falls in, in microseconds (0 if empty)
+	 */
+	long getPercentileMicros(double percentile)
+	{
+		long n = this.total.sum();
+		if (n == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++)
+		{
+			seen += this.counts.get(i);
+			if (seen >= rank)
+			{
+				return upperBound(i);
+			}
+		}
+		return upperBound(this.counts.length() - 1);
+	}
+
+	/**
+	 * Gets the bucket of a duration
+	 * @param micros - The duration
+	 * @return the bucket
+	 */
+	static private int index(long micros)
+	{
+		if (micros < LINEAR)
+		{
+			return (int) micros;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >> (exp - SUB_BITS)) & (SUB - 1);
+		return LINEAR + (exp - 7) * SUB + sub;
+	}
+
+	/**
+	 * Gets the largest duration in a bucket
+	 * @param index - The bucket
+	 * @return the duration in microseconds
+	 */
+	static private long upperBound(int index)
+	{
+		if (index < LINEAR)
+		{
+			return index;
+		}
+		int exp = (index - LINEAR) / SUB + 7;
+		long sub = (index - LINEAR) % SUB;
+		return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+}
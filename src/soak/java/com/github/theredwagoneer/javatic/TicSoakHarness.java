@@ -0,0 +1,514 @@
+package com.github.theredwagoneer.javatic;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbServices;
+
+/**
+ * Soak and load test of the library against simulated TICs.
+ *
+ * Drives a number of FakeTicDevices through real TicInterfaces with
+ * concurrent setPosition and status traffic, a TicStatusPublisher with a
+ * fast and a slow subscriber, periodic settings applies, and random
+ * detach/attach events.  At the end it reports throughput, latency
+ * percentiles, time out of service after each detach, the recovery
+ * counts of the TicInterfaces and thread/heap growth, and exits with 1
+ * if any threshold was missed.
+ *
+ * Run it with gradle:
+ * <pre>
+ * gradle soak -PsoakArgs="--devices 32 --seconds 3600"
+ * </pre>
+ * Every option is "--name value"; see Options for the names.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicSoakHarness {
+
+	/**
+	 * The options and thresholds of a run
+	 */
+	static class Options {
+		int devices = 16;
+		int workers = 8;
+		long seconds = 60;
+		long statusPeriodMs = 10;
+		long minLatencyMicros = 100;
+		long maxLatencyMicros = 400;
+		double glitchRate = 1e-4;
+		long churnMeanMs = 2000;
+		long maxDownMs = 300;
+		long settingsEveryMs = 5000;
+
+		// Pass/fail thresholds
+		double minOpsPerSec = 500;
+		long maxP99Micros = 20_000;
+		long maxReconnectP99Ms = 1000;
+		// Failures beyond the one each detach may cause
+		long maxRecoveryFailures = 0;
+		double maxOutOfServicePercent = 5;
+		int maxThreadGrowth = 2;
+		long maxHeapGrowthMb = 32;
+
+		/**
+		 * Reads "--name value" pairs over the defaults
+		 * @param args - The command line
+		 * @return the options
+		 */
+		static Options parse(String args[])
+		{
+			Options options = new Options();
+			Map<String,String> values = new HashMap<>();
+			for (int i = 0; i + 1 < args.length; i += 2)
+			{
+				if (!args[i].startsWith("--"))
+				{
+					throw new IllegalArgumentException("expected --name value: " + args[i]);
+				}
+				values.put(args[i].substring(2), args[i + 1]);
+			}
+
+			for (Map.Entry<String,String> entry : values.entrySet())
+			{
+				try
+				{
+					Field field = Options.class.getDeclaredField(entry.getKey());
+					Class<?> type = field.getType();
+					if (type == int.class)
+					{
+						field.setInt(options, Integer.parseInt(entry.getValue()));
+					}
+					else if (type == long.class)
+					{
+						field.setLong(options, Long.parseLong(entry.getValue()));
+					}
+					else
+					{
+						field.setDouble(options, Double.parseDouble(entry.getValue()));
+					}
+				}
+				catch (NoSuchFieldException | IllegalAccessException e)
+				{
+					throw new IllegalArgumentException("unknown option --" + entry.getKey());
+				}
+			}
+			return options;
+		}
+	}
+
+	private final Options options;
+	private final UsbServices services = FakeTicDevice.services();
+	private final List<FakeTicDevice> fakes = new ArrayList<>();
+	private final List<TicInterface> tics = new ArrayList<>();
+	private final List<TicRecoveryStats> recoveries = new ArrayList<>();
+
+	private final LatencyHistogram setLatency = new LatencyHistogram();
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	private final LatencyHistogram applyLatency = new LatencyHistogram();
+	private final LatencyHistogram reconnects = new LatencyHistogram();
+
+	private final LongAdder readErrors = new LongAdder();
+	private final LongAdder detaches = new LongAdder();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder slowPublished = new LongAdder();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor
+	 * @param options - The options of the run
+	 */
+	TicSoakHarness(Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Runs the harness
+	 * @param args - "--name value" options
+	 * @throws InterruptedException - Interrupted while running
+	 */
+	public static void main(String args[]) throws InterruptedException
+	{
+		boolean passed = new TicSoakHarness(Options.parse(args)).run();
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Does a run and prints the report
+	 * @return true if every threshold was met
+	 * @throws InterruptedException - Interrupted while running
+	 */
+	boolean run() throws InterruptedException
+	{
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		int threadsBefore = settledThreadCount();
+
+		// Retry and re-probe only.  Rediscovery would search the real bus.
+		TicRecoveryPolicy policy = new TicRecoveryPolicy(2, 1, 5, TimeUnit.MILLISECONDS, true, false);
+		for (int i = 0; i < this.options.devices; i++)
+		{
+			FakeTicDevice fake = new FakeTicDevice(String.format("SOAK%04d", i), TicInterface.TicModel.TIC_T500,
+					this.options.minLatencyMicros * 1000, this.options.maxLatencyMicros * 1000,
+					this.options.glitchRate, this.reconnects);
+			TicInterface tic = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+			tic.setRecoveryPolicy(policy);
+			tic.attach(this.services, fake.getHandle());
+			this.fakes.add(fake);
+			this.tics.add(tic);
+			this.recoveries.add(tic.getRecoveryStats());
+		}
+
+		TicStatusPublisher publisher = new TicStatusPublisher(this.options.statusPeriodMs, TimeUnit.MILLISECONDS,
+				this.tics.toArray(new TicInterface[0]));
+		publisher.subscribe(new CountingSubscriber(this.published, 0), TicStatusPublisher.Overflow.LATEST, 1);
+		publisher.subscribe(new CountingSubscriber(this.slowPublished, 5), TicStatusPublisher.Overflow.BUFFER, 64);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < this.options.workers; i++)
+		{
+			threads.add(new Thread(this::traffic, "soak-traffic-" + i));
+		}
+		threads.add(new Thread(this::churn, "soak-churn"));
+		threads.add(new Thread(this::settings, "soak-settings"));
+
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+
+		// Heap after a quarter of the run is the baseline for growth
+		Thread.sleep(TimeUnit.SECONDS.toMillis(this.options.seconds) / 4);
+		long heapBaseline = settledHeap(memory);
+		Thread.sleep(TimeUnit.SECONDS.toMillis(this.options.seconds) * 3 / 4);
+
+		this.running = false;
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long heapEnd = settledHeap(memory);
+
+		publisher.close();
+		this.tics.clear();
+		int threadsAfter = settledThreadCount();
+
+		return report(elapsed, heapBaseline, heapEnd, threadsBefore, threadsAfter);
+	}
+
+	/**
+	 * Sends positions and reads status on random TICs until the run ends
+	 */
+	private void traffic()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (this.running)
+		{
+			TicInterface tic = this.tics.get(random.nextInt(this.tics.size()));
+			long start = System.nanoTime();
+			if (random.nextBoolean())
+			{
+				tic.setPosition(random.nextInt(-100_000, 100_000));
+				this.setLatency.record(System.nanoTime() - start);
+			}
+			else
+			{
+				try
+				{
+					TicStatus.read(tic);
+					this.readLatency.record(System.nanoTime() - start);
+				}
+				catch (UsbDisconnectedException | UsbException e)
+				{
+					this.readErrors.increment();
+					// Don't spin on a TIC that is unplugged
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unplugs random TICs and plugs them back in until the run ends
+	 */
+	private void churn()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (this.running)
+		{
+			if (!sleep((long) (-Math.log(1 - random.nextDouble()) * this.options.churnMeanMs)))
+			{
+				break;
+			}
+
+			int i = random.nextInt(this.fakes.size());
+			FakeTicDevice fake = this.fakes.get(i);
+			fake.detach();
+			this.detaches.increment();
+
+			sleep(random.nextLong(this.options.maxDownMs + 1));
+
+			// Same as the hotplug listener finding the TIC
+			UsbDevice device = fake.attach();
+			this.tics.get(i).plugged(device);
+		}
+	}
+
+	/**
+	 * Applies settings to random TICs until the run ends
+	 */
+	private void settings()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Map<TicSet,Long> profile = new HashMap<>();
+		while (this.running && sleep(this.options.settingsEveryMs))
+		{
+			profile.put(TicSet.MAX_SPEED, (long) random.nextInt(1_000_000, 50_000_000));
+			profile.put(TicSet.MAX_ACCEL, (long) random.nextInt(10_000, 1_000_000));
+			profile.put(TicSet.STEP_MODE, (long) random.nextInt(0, 4));
+			profile.put(TicSet.CURRENT_LIMIT, (long) random.nextInt(0, 60));
+
+			TicInterface tic = this.tics.get(random.nextInt(this.tics.size()));
+			long start = System.nanoTime();
+			tic.applySettings(profile);
+			this.applyLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Prints the report and checks the thresholds
+	 * @param elapsed - Length of the run in seconds
+	 * @param heapBaseline - Heap used a quarter into the run
+	 * @param heapEnd - Heap used at the end of the run
+	 * @param threadsBefore - Live threads before the run
+	 * @param threadsAfter - Live threads after everything was closed
+	 * @return true if every threshold was met
+	 */
+	private boolean report(double elapsed, long heapBaseline, long heapEnd, int threadsBefore, int threadsAfter)
+	{
+		long ops = this.setLatency.getCount() + this.readLatency.getCount();
+		double opsPerSec = ops / elapsed;
+		long p99 = Math.max(this.setLatency.getPercentileMicros(99), this.readLatency.getPercentileMicros(99));
+		long reconnectP99 = this.reconnects.getPercentileMicros(99) / 1000;
+		long heapGrowthMb = (heapEnd - heapBaseline) >> 20;
+		int threadGrowth = threadsAfter - threadsBefore;
+
+		long transfers = 0;
+		long glitches = 0;
+		for (FakeTicDevice fake : this.fakes)
+		{
+			transfers += fake.getTransfers();
+			glitches += fake.getGlitches();
+		}
+
+		long retries = 0;
+		long reprobes = 0;
+		long rediscoveries = 0;
+		long failures = 0;
+		long outages = 0;
+		long outOfServiceNanos = 0;
+		long stageOutages[] = new long[TicRecoveryStats.Stage.values().length];
+		long stageNanos[] = new long[TicRecoveryStats.Stage.values().length];
+		for (TicRecoveryStats stats : this.recoveries)
+		{
+			retries += stats.getRetries();
+			reprobes += stats.getReprobes();
+			rediscoveries += stats.getRediscoveries();
+			failures += stats.getFailures();
+			outages += stats.getOutages();
+			outOfServiceNanos += stats.getOutOfServiceNanos();
+			for (TicRecoveryStats.Stage stage : TicRecoveryStats.Stage.values())
+			{
+				stageOutages[stage.ordinal()] += stats.getOutages(stage);
+				stageNanos[stage.ordinal()] += stats.getOutOfServiceNanos(stage);
+			}
+		}
+		double outOfServicePercent = 100.0 * outOfServiceNanos / (elapsed * 1e9 * this.options.devices);
+
+		System.out.printf("TIC soak: %d devices, %d workers, %.1f s%n", this.options.devices, this.options.workers, elapsed);
+		System.out.printf("  throughput     %.0f ops/s (%d ops, %d transfers, %.0f transfers/s)%n",
+				opsPerSec, ops, transfers, transfers / elapsed);
+		printLatency("setPosition", this.setLatency);
+		printLatency("status read", this.readLatency);
+		printLatency("applySettings", this.applyLatency);
+		System.out.printf("  read errors    %d%n", this.readErrors.sum());
+		System.out.printf("  glitches       %d injected%n", glitches);
+		System.out.printf("  detaches       %d, reconnects %d: p50 %d ms, p99 %d ms, max %d ms out of service%n",
+				this.detaches.sum(), this.reconnects.getCount(),
+				this.reconnects.getPercentileMicros(50) / 1000, reconnectP99,
+				this.reconnects.getPercentileMicros(100) / 1000);
+		System.out.printf("  recovery       %d retries, %d re-probes, %d rediscoveries, %d failures%n",
+				retries, reprobes, rediscoveries, failures);
+		for (TicRecoveryStats.Stage stage : TicRecoveryStats.Stage.values())
+		{
+			System.out.printf("  %-14s %d outages, %d ms out of service%n", "  " + stage.name().toLowerCase(),
+					stageOutages[stage.ordinal()], TimeUnit.NANOSECONDS.toMillis(stageNanos[stage.ordinal()]));
+		}
+		System.out.printf("  out of service %.2f%% of device time, %d outages%n", outOfServicePercent, outages);
+		System.out.printf("  publisher      %d fast, %d slow deliveries%n", this.published.sum(), this.slowPublished.sum());
+		System.out.printf("  threads        %d before, %d after%n", threadsBefore, threadsAfter);
+		System.out.printf("  heap           %d MB growth after warm up%n", heapGrowthMb);
+
+		boolean passed = true;
+		passed &= check("throughput", opsPerSec >= this.options.minOpsPerSec,
+				String.format("%.0f ops/s < %.0f", opsPerSec, this.options.minOpsPerSec));
+		passed &= check("p99 latency", p99 <= this.options.maxP99Micros,
+				String.format("%d us > %d", p99, this.options.maxP99Micros));
+		passed &= check("reconnect p99", reconnectP99 <= this.options.maxReconnectP99Ms,
+				String.format("%d ms > %d", reconnectP99, this.options.maxReconnectP99Ms));
+		long extraFailures = failures - this.detaches.sum();
+		passed &= check("recovery failures", extraFailures <= this.options.maxRecoveryFailures,
+				String.format("%d failures not caused by a detach > %d", extraFailures, this.options.maxRecoveryFailures));
+		passed &= check("out of service", outOfServicePercent <= this.options.maxOutOfServicePercent,
+				String.format("%.2f%% > %.2f%%", outOfServicePercent, this.options.maxOutOfServicePercent));
+		passed &= check("thread leak", threadGrowth <= this.options.maxThreadGrowth,
+				String.format("%d threads left over", threadGrowth));
+		passed &= check("heap growth", heapGrowthMb <= this.options.maxHeapGrowthMb,
+				String.format("%d MB > %d", heapGrowthMb, this.options.maxHeapGrowthMb));
+
+		System.out.println(passed ? "PASS" : "FAIL");
+		return passed;
+	}
+
+	/**
+	 * Prints a latency line of the report
+	 * @param name - What was measured
+	 * @param histogram - The latencies
+	 */
+	static private void printLatency(String name, LatencyHistogram histogram)
+	{
+		System.out.printf("  %-14s n=%d mean %.0f us, p50 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+				name, histogram.getCount(), histogram.getMeanMicros(),
+				histogram.getPercentileMicros(50), histogram.getPercentileMicros(99),
+				histogram.getPercentileMicros(99.9), histogram.getPercentileMicros(100));
+	}
+
+	/**
+	 * Prints a failed threshold
+	 * @param name - The threshold
+	 * @param ok - true if it was met
+	 * @param detail - What was measured
+	 * @return ok
+	 */
+	static private boolean check(String name, boolean ok, String detail)
+	{
+		if (!ok)
+		{
+			System.out.printf("  FAILED %s: %s%n", name, detail);
+		}
+		return ok;
+	}
+
+	/**
+	 * Sleeps unless the run ends first
+	 * @param millis - Time to sleep
+	 * @return true if the run is still going
+	 */
+	private boolean sleep(long millis)
+	{
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (this.running)
+		{
+			long left = end - System.nanoTime();
+			if (left <= 0)
+			{
+				return true;
+			}
+			LockSupport.parkNanos(Math.min(left, TimeUnit.MILLISECONDS.toNanos(50)));
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the live thread count once background threads have wound down
+	 * @return the thread count
+	 * @throws InterruptedException - Interrupted while waiting
+	 */
+	static private int settledThreadCount() throws InterruptedException
+	{
+		Thread.sleep(500);
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/**
+	 * Gets the heap used after a garbage collection
+	 * @param memory - The memory bean
+	 * @return bytes used
+	 * @throws InterruptedException - Interrupted while waiting
+	 */
+	static private long settledHeap(MemoryMXBean memory) throws InterruptedException
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Counts publisher deliveries, optionally taking time with each one
+	 * to act as a slow dashboard.
+	 */
+	static private class CountingSubscriber implements Flow.Subscriber<TicStatus> {
+		private final LongAdder count;
+		private final long delayMillis;
+		private Flow.Subscription subscription;
+
+		/**
+		 * Constructor
+		 * @param count - Counter of deliveries
+		 * @param delayMillis - Time to take with each delivery
+		 */
+		CountingSubscriber(LongAdder count, long delayMillis)
+		{
+			this.count = count;
+			this.delayMillis = delayMillis;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(TicStatus status)
+		{
+			this.count.increment();
+			if (this.delayMillis > 0)
+			{
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(this.delayMillis));
+			}
+			this.subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable)
+		{
+		}
+
+		@Override
+		public void onComplete()
+		{
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of TicDaemon against simulated TICs
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicDaemonTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test(timeout = 10000)
+	public void slowTicDoesntHoldUpOtherMailboxes() throws Exception
+	{
+		long slowNanos = TimeUnit.SECONDS.toNanos(1);
+		FakeTicDevice slow = new FakeTicDevice("SLOW", TicInterface.TicModel.TIC_T500, slowNanos, slowNanos, 0,
+				new LatencyHistogram());
+		FakeTicDevice fast = new FakeTicDevice("FAST", TicInterface.TicModel.TIC_T500, 0, 0, 0, new LatencyHistogram());
+
+		Map<String,TicInterface> tics = new LinkedHashMap<>();
+		tics.put("slow", new TicInterface(TicInterface.TicModel.TIC_T500, null, null));
+		tics.put("fast", new TicInterface(TicInterface.TicModel.TIC_T500, null, null));
+		tics.get("slow").plugged(slow.getHandle());
+		tics.get("fast").plugged(fast.getHandle());
+
+		Path path = this.folder.getRoot().toPath().resolve("board");
+		try (TicDaemon daemon = new TicDaemon(path, 10, TimeUnit.SECONDS, tics);
+				TicStatusBoard board = TicStatusBoard.open(path))
+		{
+			CompletableFuture<Void> slowSend = CompletableFuture.runAsync(() ->
+			{
+				try
+				{
+					board.send(board.find("slow"), TicCmd.SET_TARGET_POSITION, 100, 5, TimeUnit.SECONDS);
+				}
+				catch (Exception e)
+				{
+					throw new IllegalStateException(e);
+				}
+			});
+			Thread.sleep(100);
+
+			long start = System.nanoTime();
+			board.send(board.find("fast"), TicCmd.HALT_AND_HOLD, 5, TimeUnit.SECONDS);
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertTrue("fast TIC waited " + millis + " ms", millis < 500);
+			slowSend.get(5, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of TicEmergencyStop against a simulated TIC
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicEmergencyStopTest {
+
+	private FakeTicDevice fake;
+	private TicInterface tic;
+	private TicEmergencyStop estop;
+
+	@Before
+	public void setUp()
+	{
+		this.fake = new FakeTicDevice("TEST0001", TicInterface.TicModel.TIC_T500, 0, 0, 0, new LatencyHistogram());
+		this.tic = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+		this.tic.plugged(this.fake.getHandle());
+
+		// Start the motor on a long move
+		this.tic.setPosition(1_000_000);
+		this.tic.getPosition();
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (this.estop != null)
+		{
+			this.estop.close();
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void stopIsConfirmed() throws InterruptedException
+	{
+		this.estop = new TicEmergencyStop(TicCmd.HALT_AND_HOLD);
+		this.estop.addDevice(this.tic);
+
+		TicEmergencyStop.Report report = this.estop.triggerAndWait();
+
+		assertTrue(report.isAllConfirmed());
+		assertTrue(report.getLatencies().containsKey(this.tic));
+	}
+
+	@Test(timeout = 5000)
+	public void unconfirmedStopTimesOut() throws InterruptedException
+	{
+		this.fake.setStuck(true);
+		this.estop = new TicEmergencyStop(TicCmd.HALT_AND_HOLD, 50, TimeUnit.MILLISECONDS);
+		this.estop.addDevice(this.tic);
+
+		TicEmergencyStop.Report report = this.estop.triggerAndWait();
+
+		assertFalse(report.isAllConfirmed());
+		assertTrue(report.getFailures().get(this.tic) instanceof TimeoutException);
+	}
+
+	@Test(timeout = 5000)
+	public void closeDuringUnconfirmedStopFailsIt() throws Exception
+	{
+		this.fake.setStuck(true);
+		this.estop = new TicEmergencyStop(TicCmd.HALT_AND_HOLD, 1, TimeUnit.HOURS);
+		this.estop.addDevice(this.tic);
+
+		CompletableFuture<TicEmergencyStop.Report> future = this.estop.trigger();
+		Thread.sleep(100);
+		assertFalse(future.isDone());
+
+		this.estop.close();
+		TicEmergencyStop.Report report = future.get(2, TimeUnit.SECONDS);
+
+		assertFalse(report.isAllConfirmed());
+		assertEquals(1, report.getFailures().size());
+		assertTrue(report.getFailures().get(this.tic) instanceof InterruptedException);
+	}
+}
@@ -0,0 +1,94 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of TicFollowingErrorMonitor against a simulated TIC
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicFollowingErrorMonitorTest {
+
+	private TicFollowingErrorMonitor monitor;
+	private final AtomicInteger stalls = new AtomicInteger();
+
+	@Before
+	public void setUp()
+	{
+		FakeTicDevice fake = new FakeTicDevice("TEST0001", TicInterface.TicModel.TIC_T500, 0, 0, 0, new LatencyHistogram());
+		TicInterface tic = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+		tic.plugged(fake.getHandle());
+		tic.setPosition(100_000_000);
+
+		// An encoder scale of 0 makes the error the current position
+		this.monitor = new TicFollowingErrorMonitor(tic, 0, 64);
+		this.monitor.addStallListener((m, error) -> this.stalls.incrementAndGet());
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.monitor.close();
+	}
+
+	@Test(timeout = 10000)
+	public void concurrentSamplesCountEveryStallSample() throws InterruptedException
+	{
+		int threads = 8;
+		int samples = 250;
+		this.monitor.setStallThreshold(0, threads * samples);
+
+		List<Thread> samplers = new ArrayList<>();
+		for (int i = 0; i < threads; i++)
+		{
+			samplers.add(new Thread(() ->
+			{
+				for (int j = 0; j < samples; j++)
+				{
+					this.monitor.sample();
+				}
+			}));
+		}
+		for (Thread sampler : samplers)
+		{
+			sampler.start();
+		}
+		for (Thread sampler : samplers)
+		{
+			sampler.join();
+		}
+
+		// Only the very last sample reaches the count
+		assertTrue(this.monitor.isStalled());
+		assertEquals(1, this.stalls.get());
+	}
+
+	@Test
+	public void resetClearsTheStall()
+	{
+		this.monitor.setStallThreshold(0, 2);
+		this.monitor.sample();
+		this.monitor.sample();
+		assertTrue(this.monitor.isStalled());
+
+		this.monitor.reset();
+		assertFalse(this.monitor.isStalled());
+
+		this.monitor.sample();
+		assertFalse(this.monitor.isStalled());
+		this.monitor.sample();
+		assertTrue(this.monitor.isStalled());
+		assertEquals(2, this.stalls.get());
+	}
+}
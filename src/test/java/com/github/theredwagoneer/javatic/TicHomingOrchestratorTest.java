@@ -0,0 +1,115 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of TicHomingOrchestrator against simulated TICs
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicHomingOrchestratorTest {
+
+	private FakeTicDevice fakeZ;
+	private FakeTicDevice fakeY;
+	private TicInterface ticZ;
+	private TicInterface ticY;
+	private TicHomingOrchestrator orchestrator;
+
+	@Before
+	public void setUp()
+	{
+		this.fakeZ = new FakeTicDevice("TESTZ", TicInterface.TicModel.TIC_T500, 0, 0, 0, new LatencyHistogram());
+		this.fakeY = new FakeTicDevice("TESTY", TicInterface.TicModel.TIC_T500, 0, 0, 0, new LatencyHistogram());
+		this.ticZ = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+		this.ticY = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+		this.ticZ.plugged(this.fakeZ.getHandle());
+		this.ticY.plugged(this.fakeY.getHandle());
+
+		this.orchestrator = new TicHomingOrchestrator(2, 5000, TimeUnit.MILLISECONDS);
+		this.orchestrator.addAxis("Z", this.ticZ);
+		this.orchestrator.addAxis("Y", this.ticY);
+		this.orchestrator.addDependency("Y", "Z");
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.orchestrator.close();
+	}
+
+	@Test(timeout = 10000)
+	public void homesEveryAxis() throws Exception
+	{
+		Map<String,Long> nanos = this.orchestrator.home().whenDone().get(5, TimeUnit.SECONDS);
+
+		assertEquals(2, nanos.size());
+		assertTrue(nanos.get("Z") > 0);
+		assertTrue(nanos.get("Y") > 0);
+	}
+
+	@Test(timeout = 10000)
+	public void deenergizedAxisIsEnergizedFirst() throws Exception
+	{
+		TicCmd.DEENERGIZE.Send(this.ticZ);
+
+		this.orchestrator.home().whenDone().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test(timeout = 10000)
+	public void clearFlagsBeforeHomingStartsDontCount() throws Exception
+	{
+		// Ignores GO_HOME, so the flags stay clear from an earlier homing
+		this.fakeZ.setStuck(true);
+
+		TicHomingOrchestrator.Homing homing = this.orchestrator.home();
+
+		assertEquals(IllegalStateException.class, cause(homing.getAxis("Z")).getClass());
+		assertEquals(IllegalStateException.class, cause(homing.getAxis("Y")).getClass());
+	}
+
+	@Test(timeout = 10000)
+	public void closeFailsUnfinishedAxes() throws Exception
+	{
+		this.fakeZ.setStuck(true);
+		TicHomingOrchestrator.Homing homing = this.orchestrator.home();
+		Thread.sleep(50);
+
+		this.orchestrator.close();
+
+		assertEquals(InterruptedException.class, cause(homing.getAxis("Z")).getClass());
+		assertEquals(InterruptedException.class, cause(homing.getAxis("Y")).getClass());
+		assertTrue(homing.whenDone().isCompletedExceptionally());
+	}
+
+	/**
+	 * Waits for a future that should fail
+	 * @param future - The future
+	 * @return why it failed
+	 * @throws Exception - It didn't finish in time
+	 */
+	static private Throwable cause(CompletableFuture<?> future) throws Exception
+	{
+		try
+		{
+			future.get(3, TimeUnit.SECONDS);
+		}
+		catch (ExecutionException e)
+		{
+			return e.getCause();
+		}
+		fail("future didn't fail");
+		return null;
+	}
+}
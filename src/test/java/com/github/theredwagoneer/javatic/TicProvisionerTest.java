@@ -0,0 +1,104 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests of TicProvisioner against simulated TICs
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicProvisionerTest {
+
+	private final List<FakeTicDevice> fakes = new ArrayList<>();
+	private final List<TicInterface> tics = new ArrayList<>();
+
+	/**
+	 * Makes simulated TICs
+	 * @param count - Number of TICs
+	 * @param latencyNanos - Time each transfer takes
+	 */
+	private void fleet(int count, long latencyNanos)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			FakeTicDevice fake = new FakeTicDevice(String.format("TEST%04d", i), TicInterface.TicModel.TIC_T500,
+					latencyNanos, latencyNanos, 0, new LatencyHistogram());
+			TicInterface tic = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+			tic.plugged(fake.getHandle());
+			this.fakes.add(fake);
+			this.tics.add(tic);
+		}
+	}
+
+	/**
+	 * Makes a profile that touches shared setting bytes
+	 * @return the profile
+	 */
+	static private Map<TicSet,Long> profile()
+	{
+		Map<TicSet,Long> profile = new HashMap<>();
+		profile.put(TicSet.MAX_SPEED, 20_000_000L);
+		profile.put(TicSet.STEP_MODE, 3L);
+		profile.put(TicSet.SERIAL_ALT_DEVICE_NUMBER, 300L);
+		profile.put(TicSet.SERIAL_ENABLE_ALT_DEVICE_NUMBER, 1L);
+		return profile;
+	}
+
+	@Test(timeout = 10000)
+	public void provisionsEveryTic() throws Exception
+	{
+		fleet(8, 0);
+		try (TicProvisioner provisioner = new TicProvisioner(4, 2))
+		{
+			TicProvisioner.Provisioning run = provisioner.provision(profile(), this.tics);
+			run.whenDone().get(5, TimeUnit.SECONDS);
+
+			assertTrue(run.getFailures().isEmpty());
+			for (TicInterface tic : this.tics)
+			{
+				for (Map.Entry<TicSet,Long> entry : profile().entrySet())
+				{
+					assertEquals(entry.getKey().toString(), (long) entry.getValue(), entry.getKey().get(tic));
+				}
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void closeFailsUnfinishedTics() throws Exception
+	{
+		fleet(8, TimeUnit.MILLISECONDS.toNanos(2));
+		TicProvisioner provisioner = new TicProvisioner(1, 1);
+		TicProvisioner.Provisioning run = provisioner.provision(profile(), this.tics);
+
+		Thread.sleep(20);
+		provisioner.close();
+		run.whenDone().get(2, TimeUnit.SECONDS);
+
+		assertEquals(this.tics.size(), run.getFinished());
+		assertTrue(run.getFailures().size() > 0);
+		for (TicProvisioner.Progress progress : run.getProgress())
+		{
+			TicProvisioner.State state = progress.getState();
+			assertTrue(state.toString(), state == TicProvisioner.State.DONE || state == TicProvisioner.State.FAILED);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void provisionAfterCloseIsRejected()
+	{
+		TicProvisioner provisioner = new TicProvisioner(1, 1);
+		provisioner.close();
+		provisioner.provision(profile(), this.tics);
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.usb.UsbException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that pack() and touch(), used by TicProvisioner, lay out the
+ * setting bytes the same as set() does on a TIC
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicSetTest {
+
+	private final Random random = new Random(1);
+	private FakeTicDevice fake;
+	private TicInterface tic;
+
+	@Before
+	public void setUp()
+	{
+		this.fake = new FakeTicDevice("TEST0001", TicInterface.TicModel.TIC_T500, 0, 0, 0, new LatencyHistogram());
+		this.tic = new TicInterface(TicInterface.TicModel.TIC_T500, null, null);
+		this.tic.plugged(this.fake.getHandle());
+	}
+
+	@Test
+	public void packMatchesSetForEverySetting() throws UsbException
+	{
+		for (TicSet set : TicSet.values())
+		{
+			for (int i = 0; i < 20; i++)
+			{
+				byte before[] = new byte[256];
+				this.random.nextBytes(before);
+				this.fake.setSettings(before);
+
+				check(set, before, value(set));
+			}
+		}
+	}
+
+	@Test
+	public void packMatchesSetForAllSettingsInTurn() throws UsbException
+	{
+		// Settings that share a byte (0x02, 0x03, 0x0B, 0x6A) build on each other
+		for (int i = 0; i < 20; i++)
+		{
+			byte image[] = new byte[256];
+			this.random.nextBytes(image);
+			this.fake.setSettings(image);
+
+			for (TicSet set : TicSet.values())
+			{
+				image = check(set, image, value(set));
+			}
+		}
+	}
+
+	/**
+	 * Sets a setting both ways and compares the results
+	 * @param set - The setting
+	 * @param before - Settings on the TIC before
+	 * @param value - The value to set
+	 * @return settings on the TIC after
+	 * @throws UsbException - Missing Device
+	 */
+	private byte[] check(TicSet set, byte before[], long value) throws UsbException
+	{
+		byte packed[] = before.clone();
+		set.pack(packed, value);
+
+		set.set(this.tic, value);
+		byte after[] = this.fake.getSettings();
+		assertArrayEquals(set + " = " + value, after, packed);
+
+		boolean touched[] = new boolean[256];
+		set.touch(touched);
+		for (int offset = 0; offset < 256; offset++)
+		{
+			assertTrue(set + " changed untouched byte " + offset, touched[offset] || after[offset] == before[offset]);
+		}
+		return after;
+	}
+
+	/**
+	 * Picks a random value in the range of a setting
+	 * @param set - The setting
+	 * @return the value
+	 */
+	private long value(TicSet set)
+	{
+		switch (set.type())
+		{
+			case BOOL:
+				return this.random.nextInt(2);
+			case BIT_14:
+				return this.random.nextInt(1 << 14);
+			default:
+				return this.random.nextLong();
+		}
+	}
+}
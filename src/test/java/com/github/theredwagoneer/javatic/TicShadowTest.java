@@ -0,0 +1,67 @@
+package com.github.theredwagoneer.javatic;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of the host side copy of the commanded variables
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TicShadowTest {
+
+	@Test
+	public void readFromBeforeACommandIsIgnored()
+	{
+		TicShadow shadow = new TicShadow();
+		target(shadow, 1000);
+
+		long readStart = tick();
+		target(shadow, 1234);
+		shadow.verify(TicVar.TARGET_POSITION, 1000, readStart);
+
+		assertEquals(1234, shadow.get(TicVar.TARGET_POSITION));
+		assertEquals(0, shadow.getMismatches());
+	}
+
+	@Test
+	public void readFromAfterACommandCorrectsTheCopy()
+	{
+		TicShadow shadow = new TicShadow();
+		target(shadow, 1000);
+
+		shadow.verify(TicVar.TARGET_POSITION, 555, tick());
+
+		assertEquals(555, shadow.get(TicVar.TARGET_POSITION));
+		assertEquals(1, shadow.getMismatches());
+	}
+
+	/**
+	 * Records a SET_TARGET_POSITION going through
+	 * @param shadow - The copy
+	 * @param position - The target
+	 */
+	static private void target(TicShadow shadow, int position)
+	{
+		shadow.sent((byte) 0x40, TicCmd.SET_TARGET_POSITION.code(), (short) position, (short) (position >> 16));
+		tick();
+	}
+
+	/**
+	 * Waits for System.nanoTime() to move on
+	 * @return the new time
+	 */
+	static private long tick()
+	{
+		long start = System.nanoTime();
+		long now;
+		do
+		{
+			now = System.nanoTime();
+		}
+		while (now == start);
+		return now;
+	}
+}